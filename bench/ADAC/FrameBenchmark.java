@@ -0,0 +1,79 @@
+package ADAC;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Full decoding of every frame for each bit depth and acquisition layout, one
+ * frame at a time and with {@link ADACStackLoader} on the common pool.
+ *
+ * @author neil
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+
+	@Param({ "8", "16", "32" })
+	public int bitDepth;
+
+	@Param({ "PLANAR", "DYNAMIC", "SPECT", "GATED_SPECT" })
+	public SyntheticADAC.Layout layout;
+
+	private ADACPixelSource source;
+	private int pixels;
+
+	@Setup
+	public void setup() throws IOException {
+
+		byte[] object = SyntheticADAC.create(layout, bitDepth);
+		ADACDecoder decoder = new ADACDecoder(null, "bench",
+				new BufferedInputStream(new ByteArrayInputStream(object)), new ADACConsoleLog(false));
+
+		source = new ADACPixelSource(ByteBuffer.wrap(object), decoder);
+		pixels = source.getWidth() * source.getHeight();
+
+		// Round trip check of the encoder against the decoder
+		if (source.getFrameCount() != decoder.getNumberOfImages() || source.getBitDepth() != bitDepth
+				|| decoder.getImageOffset() + (long) decoder.getNumberOfImages() * decoder.getFrameSize() != object.length) {
+			throw new IllegalStateException("Synthetic " + layout + " object does not decode as written");
+		}
+
+	}
+
+	@Benchmark
+	public void decodeAllFrames(Blackhole bh) {
+
+		for (int i = 0; i < source.getFrameCount(); i++) {
+			bh.consume(ADACFrameDecoder.getPixels(source.getFrame(i), pixels, source.getBitDepth()));
+		}
+
+	}
+
+	@Benchmark
+	public void decodeAllFramesParallel(Blackhole bh) {
+		bh.consume(ADACStackLoader.load(source, ForkJoinPool.commonPool()));
+	}
+
+}
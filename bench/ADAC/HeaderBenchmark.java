@@ -0,0 +1,79 @@
+package ADAC;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Header parsing: decoder construction, Extras parsing and lookup, and header
+ * dumps.
+ *
+ * @author neil
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderBenchmark {
+
+	private static final ADACLog QUIET = new ADACConsoleLog(false);
+	private static final int CALIB_KEY = ExtrasBlock.key(ExtrasKvp.CALIB_KEY);
+
+	private byte[] object;
+	private ADACDecoder decoder;
+	private ADACKey extrasKey;
+
+	@Setup
+	public void setup() throws IOException {
+
+		object = SyntheticADAC.create(SyntheticADAC.Layout.GATED_SPECT, 16);
+		decoder = decode();
+		extrasKey = new ADACKey(ADACDictionary.PROGRAM_SPECIFIC,
+				decoder.getHeader().getOffset(ADACDictionary.PROGRAM_SPECIFIC));
+
+	}
+
+	@Benchmark
+	public ADACDecoder construct() throws IOException {
+		return decode();
+	}
+
+	@Benchmark
+	public Object extrasMap() {
+		return new ExtrasKvp(decoder, extrasKey).getMap();
+	}
+
+	@Benchmark
+	public String extrasLookup() {
+
+		// What the indexer does for each file
+		int offset = decoder.getHeader().getOffset(ADACDictionary.PROGRAM_SPECIFIC);
+		return new ExtrasBlock(object, offset, ExtrasKvp.LENGTH).get(CALIB_KEY);
+
+	}
+
+	@Benchmark
+	public String headerDump() {
+		return decoder.toString();
+	}
+
+	private ADACDecoder decode() throws IOException {
+		return new ADACDecoder(null, "bench", new BufferedInputStream(new ByteArrayInputStream(object)), QUIET);
+	}
+
+}
@@ -0,0 +1,359 @@
+package ADAC;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts the reads made to open an ADAC object, to check that the header is
+ * read once per open and that the pixel data is then read from the same
+ * source, starting at {@link ADACDecoder#getImageOffset()}. The sources
+ * handed to the decoder are wrapped in counting decorators, so the counts are
+ * of real reads rather than of what the decoder reports about itself.
+ *
+ * Run with <code>ant check</code>. Exits with status 1 if any check fails.
+ *
+ * @author neil
+ *
+ */
+public class ReadCountCheck {
+
+	private static final ADACLog QUIET = new ADACConsoleLog(false);
+
+	private static final List<String> failures = new ArrayList<String>();
+
+	public static void main(String[] args) throws IOException {
+
+		for (SyntheticADAC.Layout layout : SyntheticADAC.Layout.values()) {
+
+			byte[] object = SyntheticADAC.create(layout, 16);
+			String name = layout.name();
+
+			checkStream(name, object);
+			checkChannel(name, object);
+			checkFile(name, object);
+
+		}
+
+		for (String failure : failures) {
+			System.err.println("FAILED: " + failure);
+		}
+		System.out.println(failures.isEmpty() ? "All read count checks passed" : failures.size() + " checks failed");
+		System.exit(failures.isEmpty() ? 0 : 1);
+
+	}
+
+	/**
+	 * One read of the source under the decoder's buffered stream for the
+	 * header, after which the same stream is handed back positioned at the
+	 * pixel data.
+	 */
+	private static void checkStream(String name, byte[] object) throws IOException {
+
+		CountingStream source = new CountingStream(new ByteArrayInputStream(object));
+		BufferedInputStream in = new BufferedInputStream(source);
+		ADACDecoder ad = new ADACDecoder("", name, in, QUIET);
+
+		check(name + " stream: header reads", 1, source.reads);
+		check(name + " stream: header bytes read", true, source.bytes >= ADACDictionary.IM_OFFSET);
+
+		InputStream pixels = ad.getImageStream();
+		check(name + " stream: pixel stream is the header stream", true, pixels == in);
+
+		byte[] first = new byte[ad.getFrameSize()];
+		int n = 0;
+		while (n < first.length) {
+			int r = pixels.read(first, n, first.length - n);
+			if (r < 0) {
+				break;
+			}
+			n += r;
+		}
+		check(name + " stream: first frame read from the image offset", true,
+				matches(object, ad.getImageOffset(), first));
+
+	}
+
+	/**
+	 * One positional read of the header from a caller's channel, which is then
+	 * used, unmoved, to map the pixel data from the image offset.
+	 */
+	private static void checkChannel(String name, byte[] object) throws IOException {
+
+		File file = write(object);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+
+			CountingChannel channel = new CountingChannel(raf.getChannel());
+			ADACDecoder ad = new ADACDecoder(channel, QUIET);
+
+			check(name + " channel: header reads", 1, channel.reads);
+			check(name + " channel: header bytes", ADACDictionary.IM_OFFSET, channel.bytes);
+			check(name + " channel: position untouched", 0L, channel.position());
+			check(name + " channel: pixel channel is the header channel", true, ad.getChannel() == channel);
+
+			ADACPixelSource source = new ADACPixelSource(ad.getChannel(), ad);
+			check(name + " channel: maps", 1, channel.maps);
+			check(name + " channel: mapped from the image offset", (long) ad.getImageOffset(), channel.mapPosition);
+			check(name + " channel: no further reads", 1, channel.reads);
+			check(name + " channel: first frame from the image offset", true,
+					matches(object, ad.getImageOffset(), bytes(source.getFrame(0))));
+
+		} finally {
+			raf.close();
+			file.delete();
+		}
+
+	}
+
+	/**
+	 * One header read from the file's channel when
+	 * {@link ADACDecoder#open(String, String, ADACLog)} misses the header
+	 * cache, and none when it hits.
+	 */
+	private static void checkFile(String name, byte[] object) throws IOException {
+
+		File file = write(object);
+
+		try {
+
+			ADACHeaderCache.getShared().clear();
+			for (int i = 0; i < 2; i++) {
+
+				CountingChannel channel = new CountingChannel(new RandomAccessFile(file, "r").getChannel());
+				ADACDecoder ad = ADACDecoder.open(file, channel, QUIET);
+				try {
+					check(name + " file " + i + ": header reads", i == 0 ? 1 : 0, channel.reads);
+					check(name + " file " + i + ": header bytes", i == 0 ? ADACDictionary.IM_OFFSET : 0,
+							channel.bytes);
+					check(name + " file " + i + ": pixel channel is the header channel", true,
+							ad.getChannel() == channel);
+					check(name + " file " + i + ": first frame from the image offset", true,
+							matches(object, ad.getImageOffset(),
+									bytes(new ADACPixelSource(ad.getChannel(), ad).getFrame(0))));
+				} finally {
+					ad.close();
+				}
+
+			}
+
+		} finally {
+			file.delete();
+		}
+
+	}
+
+	private static File write(byte[] object) throws IOException {
+
+		File file = File.createTempFile("adac", ".adac");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(object);
+		} finally {
+			out.close();
+		}
+		return file;
+
+	}
+
+	private static byte[] bytes(ByteBuffer frame) {
+
+		byte[] b = new byte[frame.remaining()];
+		frame.duplicate().get(b);
+		return b;
+
+	}
+
+	private static boolean matches(byte[] object, int offset, byte[] frame) {
+
+		for (int i = 0; i < frame.length; i++) {
+			if (object[offset + i] != frame[i]) {
+				return false;
+			}
+		}
+		return frame.length > 0;
+
+	}
+
+	private static void check(String what, Object expected, Object actual) {
+
+		if (!expected.equals(actual)) {
+			failures.add(what + ": expected " + expected + " but was " + actual);
+		}
+
+	}
+
+	/**
+	 * Counts the reads made of the stream it wraps.
+	 */
+	private static class CountingStream extends FilterInputStream {
+
+		int reads;
+		int bytes;
+
+		CountingStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			reads++;
+			int b = super.read();
+			if (b >= 0) {
+				bytes++;
+			}
+			return b;
+
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			reads++;
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				bytes += n;
+			}
+			return n;
+
+		}
+
+	}
+
+	/**
+	 * Counts reads and maps, passing everything on to another channel.
+	 */
+	private static class CountingChannel extends FileChannel {
+
+		private final FileChannel channel;
+
+		int reads;
+		int bytes;
+		int maps;
+		long mapPosition = -1;
+
+		CountingChannel(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		private int count(int n) {
+
+			reads++;
+			if (n > 0) {
+				bytes += n;
+			}
+			return n;
+
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return count(channel.read(dst));
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			return count((int) channel.read(dsts, offset, length));
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			return count(channel.read(dst, position));
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+
+			maps++;
+			if (mapPosition < 0) {
+				mapPosition = position;
+			}
+			return channel.map(mode, position, size);
+
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return channel.write(src);
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			return channel.write(srcs, offset, length);
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) throws IOException {
+			return channel.write(src, position);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return channel.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			channel.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return channel.size();
+		}
+
+		@Override
+		public FileChannel truncate(long size) throws IOException {
+			channel.truncate(size);
+			return this;
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException {
+			channel.force(metaData);
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return channel.transferTo(position, count, target);
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+			return channel.transferFrom(src, position, count);
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			return channel.lock(position, size, shared);
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			return channel.tryLock(position, size, shared);
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException {
+			channel.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,79 @@
+package ADAC;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * SPECT reconstruction of the synthetic 64 projection, 128x128 acquisition,
+ * and of every interval of the synthetic gated SPECT acquisition, on the
+ * common pool once the tables have been built.
+ *
+ * @author neil
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReconstructionBenchmark {
+
+	@Param({ "FBP", "OSEM" })
+	public ADACReconstructor.Method method;
+
+	private ADACPixelSource source;
+	private ADACReconstructor reconstructor;
+	private ADACPixelSource gatedSource;
+	private ADACReconstructor gatedReconstructor;
+
+	@Setup
+	public void setup() throws IOException {
+
+		byte[] object = SyntheticADAC.create(SyntheticADAC.Layout.SPECT, 16);
+		ADACDecoder decoder = new ADACDecoder(null, "bench",
+				new BufferedInputStream(new ByteArrayInputStream(object)), new ADACConsoleLog(false));
+
+		source = new ADACPixelSource(ByteBuffer.wrap(object), decoder);
+		reconstructor = new ADACReconstructor(decoder);
+		reconstructor.setMethod(method);
+		reconstructor.reconstruct(source, 0, ForkJoinPool.commonPool());
+
+		byte[] gated = SyntheticADAC.create(SyntheticADAC.Layout.GATED_SPECT, 16);
+		ADACDecoder gatedDecoder = new ADACDecoder(null, "bench",
+				new BufferedInputStream(new ByteArrayInputStream(gated)), new ADACConsoleLog(false));
+
+		gatedSource = new ADACPixelSource(ByteBuffer.wrap(gated), gatedDecoder);
+		gatedReconstructor = new ADACReconstructor(gatedDecoder);
+		gatedReconstructor.setMethod(method);
+		gatedReconstructor.reconstructGated(gatedSource, ForkJoinPool.commonPool());
+
+	}
+
+	@Benchmark
+	public float[][] reconstruct() {
+		return reconstructor.reconstruct(source, 0, ForkJoinPool.commonPool());
+	}
+
+	@Benchmark
+	public float[][][] reconstructGated() {
+		return gatedReconstructor.reconstructGated(gatedSource, ForkJoinPool.commonPool());
+	}
+
+}
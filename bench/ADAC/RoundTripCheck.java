@@ -0,0 +1,81 @@
+package ADAC;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes an object with non-ASCII strings through {@link ADACEncoder} and
+ * reads it back through {@link ADACDecoder}, to check that dictionary strings
+ * and Extras items survive whatever the platform default charset is. Both
+ * sides use ISO-8859-1.
+ *
+ * Run with <code>ant check</code>, which runs it under a UTF-8 default
+ * charset. Exits with status 1 if any check fails.
+ *
+ * @author neil
+ *
+ */
+public class RoundTripCheck {
+
+	private static final ADACLog QUIET = new ADACConsoleLog(false);
+
+	// "Renee^Muller" and "Aero" with accents, written as escapes so the source
+	// encoding does not matter
+	private static final String NAME = "Ren\u00e9e^M\u00fcller";
+	private static final String PROCEDURE = "\u00c6r\u00f8";
+
+	private static final List<String> failures = new ArrayList<String>();
+
+	public static void main(String[] args) throws IOException {
+
+		ADACEncoder encoder = new ADACEncoder();
+		encoder.setString(ADACDictionary.PATIENT_NAME, NAME);
+		encoder.setString(ADACDictionary.EXAM_PROCEDURE, PROCEDURE);
+		encoder.setString(ADACDictionary.DATA_TYPE, "ST");
+		encoder.setShort(ADACDictionary.X_DIMENSIONS, (short) 4);
+		encoder.setShort(ADACDictionary.Y_DIMENSIONS, (short) 4);
+		encoder.setShort(ADACDictionary.PIXEL_BIT_DEPTH, (short) 16);
+		encoder.setExtra(ExtrasKvp.LONG_PATIENT_NAME_KEY, NAME);
+
+		byte[] object = encoder.encode(new ADACEncoder.FrameWriter() {
+			public void fill(int index, ByteBuffer frame) {
+				while (frame.hasRemaining()) {
+					frame.putShort((short) 1);
+				}
+			}
+		});
+
+		ADACDecoder ad = new ADACDecoder("", "roundtrip", new BufferedInputStream(new ByteArrayInputStream(object)),
+				QUIET);
+		ADACHeader header = ad.getHeader();
+
+		check("preamble", "adac01", header.getPreamble());
+		check("trimmed patient name", NAME, header.getTrimmedString(ADACDictionary.PATIENT_NAME));
+		check("patient name", NAME, header.getString(ADACDictionary.PATIENT_NAME).replace("\u0000", ""));
+		check("trimmed exam procedure", PROCEDURE, header.getTrimmedString(ADACDictionary.EXAM_PROCEDURE));
+		check("Extras long patient name", NAME,
+				header.getExtrasBlock().get(ExtrasBlock.key(ExtrasKvp.LONG_PATIENT_NAME_KEY)));
+
+		for (String failure : failures) {
+			System.err.println("FAILED: " + failure);
+		}
+		System.out.println(failures.isEmpty() ? "All round trip checks passed (default charset "
+				+ Charset.defaultCharset() + ")" : failures.size() + " checks failed");
+		System.exit(failures.isEmpty() ? 0 : 1);
+
+	}
+
+	private static void check(String what, String expected, String actual) {
+
+		if (!expected.equals(actual)) {
+			failures.add(what + ": expected " + expected + " but was " + actual);
+		}
+
+	}
+
+}
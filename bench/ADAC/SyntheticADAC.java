@@ -0,0 +1,91 @@
+package ADAC;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Builds ADAC objects in memory for the benchmarks, so no patient data is
+ * needed.
+ *
+ * @author neil
+ *
+ */
+public class SyntheticADAC {
+
+	/**
+	 * Acquisition layouts covered by the benchmarks.
+	 */
+	public enum Layout {
+
+		PLANAR("ST", 256, 1, 0, 0), DYNAMIC("DY", 128, 60, 0, 0), SPECT("TO", 128, 64, 0, 0), GATED_SPECT("GE", 64,
+				64, 8, 0);
+
+		final String dataType;
+		final int matrix;
+		final int zdim;
+		final int intervals;
+		final int slices;
+
+		Layout(String dataType, int matrix, int zdim, int intervals, int slices) {
+			this.dataType = dataType;
+			this.matrix = matrix;
+			this.zdim = zdim;
+			this.intervals = intervals;
+			this.slices = slices;
+		}
+
+	}
+
+	private SyntheticADAC() {
+	}
+
+	/**
+	 * Build a complete object: header, any gated sub-headers and pixel data.
+	 *
+	 * @param layout
+	 * @param bitDepth
+	 *            8, 16 or 32
+	 * @return
+	 */
+	public static byte[] create(Layout layout, final int bitDepth) {
+
+		ADACEncoder encoder = new ADACEncoder();
+		encoder.setString(ADACDictionary.PATIENT_NAME, "SYNTHETIC^PATIENT");
+		encoder.setString(ADACDictionary.PATIENT_ID, "BENCH0001");
+		encoder.setString(ADACDictionary.ACQUISITION_DATE, "20150101");
+		encoder.setString(ADACDictionary.DATA_TYPE, layout.dataType);
+		encoder.setString(ADACDictionary.EXAM_PROCEDURE, "BENCHMARK");
+		encoder.setShort(ADACDictionary.X_DIMENSIONS, (short) layout.matrix);
+		encoder.setShort(ADACDictionary.Y_DIMENSIONS, (short) layout.matrix);
+		encoder.setShort(ADACDictionary.Z_DIMENSIONS, (short) layout.zdim);
+		encoder.setShort(ADACDictionary.NUMBER_OF_IMAGE_SETS, (short) layout.intervals);
+		encoder.setShort(ADACDictionary.RECONSTRUCTED_SLICES, (short) layout.slices);
+		encoder.setShort(ADACDictionary.PIXEL_BIT_DEPTH, (short) bitDepth);
+		encoder.setFloat(ADACDictionary.ZOOM, 1.0f);
+		encoder.setInteger(ADACDictionary.FRAME_TIME, 1000);
+		encoder.setExtra(ExtrasKvp.CALIB_KEY, "0.8723");
+		encoder.setExtra(ExtrasKvp.STUID_KEY, "1.2.826.0.1.3680043.2.1125.1.1");
+		encoder.setExtra(ExtrasKvp.LONG_ID_KEY, "BENCH0000001");
+		encoder.setExtra(ExtrasKvp.LONG_PATIENT_NAME_KEY, "SYNTHETIC^PATIENT");
+		encoder.setExtra(ExtrasKvp.ACCNUM_KEY, "ACC123456");
+
+		// A ramp of pixel values
+		return encoder.encode(new ADACEncoder.FrameWriter() {
+			public void fill(int index, ByteBuffer frame) {
+				for (int i = 0; frame.hasRemaining(); i++) {
+					switch (bitDepth) {
+					case 8:
+						frame.put((byte) (index + i));
+						break;
+					case 32:
+						frame.putFloat((index + i) % 1000);
+						break;
+					default:
+						frame.putShort((short) ((index + i) % 1000));
+					}
+				}
+			}
+		});
+
+	}
+
+}
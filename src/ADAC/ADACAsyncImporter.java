@@ -0,0 +1,361 @@
+package ADAC;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import ij.ImagePlus;
+
+/**
+ * Opens ADAC objects without blocking the caller. Each open gives two futures:
+ * the decoded header, an immutable {@link ADACHeader} which completes as soon
+ * as the first 2048 bytes have been read, and the pixel data, which completes
+ * once it is mapped (local files) or copied off the heap (streams and
+ * channels).
+ *
+ * All reading is done by tasks on the executor passed in. If the executor
+ * rejects a task, for instance once it has been shut down, the futures fail
+ * and the source is closed. Reads block, so on
+ * Java 21 and later an executor such as
+ * <code>Executors.newVirtualThreadPerTaskExecutor()</code> lets hundreds of
+ * opens be in flight without a platform thread each.
+ *
+ * <pre>
+ * ADACAsyncImporter importer = new ADACAsyncImporter(executor, log);
+ * ADACAsyncImporter.Result result = importer.open(new File(path));
+ * result.getHeader().thenAccept(showSummary);
+ * result.getImage().thenAccept(showImage);
+ * </pre>
+ *
+ * @author neil
+ *
+ */
+public class ADACAsyncImporter {
+
+	private final Executor executor;
+	private final ADACLog logger;
+
+	/**
+	 * Create an importer that runs on the common fork/join pool.
+	 *
+	 * @param adacLog
+	 */
+	public ADACAsyncImporter(ADACLog adacLog) {
+		this(ForkJoinPool.commonPool(), adacLog);
+	}
+
+	/**
+	 * Create an importer that runs its reads on an executor.
+	 *
+	 * @param executor
+	 * @param adacLog
+	 */
+	public ADACAsyncImporter(Executor executor, ADACLog adacLog) {
+
+		this.executor = executor;
+		logger = adacLog;
+
+	}
+
+	/**
+	 * Open a local file. The header comes from the shared
+	 * {@link ADACHeaderCache} when it can, and the pixel data is mapped.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public Result open(final File file) {
+
+		final CompletableFuture<ADACDecoder> header = submit(new Task<ADACDecoder>() {
+			ADACDecoder call() throws IOException {
+				return check(ADACDecoder.open(file.getAbsoluteFile().getParent() + File.separator, file.getName(),
+						logger));
+			}
+		});
+
+		CompletableFuture<ADACFrameSource> pixels = then(header, new Step<ADACFrameSource>() {
+			ADACFrameSource call(ADACDecoder ad) throws IOException {
+
+				// The mapping outlives the channel
+				try {
+					ADACPixelSource source = new ADACPixelSource(ad.getChannel(), ad);
+					ADACDecoder.getMetrics().file(file.getPath(), ad.getChannel().size());
+					return source;
+				} finally {
+					ad.close();
+				}
+
+			}
+		});
+
+		return new Result(file.getName(), header, pixels);
+
+	}
+
+	/**
+	 * Open an object from a stream, such as a URL connection. The pixel data
+	 * is copied off the heap into an {@link ADACPixelStore}, and the stream is
+	 * closed once it has been read, or if reading fails.
+	 *
+	 * @param name
+	 *            The name of the object, used as the image title.
+	 * @param in
+	 * @return
+	 */
+	public Result open(final String name, final InputStream in) {
+
+		final CompletableFuture<ADACDecoder> header = submit(new Task<ADACDecoder>() {
+			ADACDecoder call() throws IOException {
+
+				try {
+					return check(new ADACDecoder(null, name, new BufferedInputStream(in), logger));
+				} catch (IOException e) {
+					in.close();
+					throw e;
+				}
+
+			}
+
+			void abandon() throws IOException {
+				in.close();
+			}
+		});
+
+		return new Result(name, header, then(header, new Step<ADACFrameSource>() {
+			ADACFrameSource call(ADACDecoder ad) throws IOException {
+				return readAndClose(ad, in);
+			}
+
+			void abandon(ADACDecoder ad) throws IOException {
+				in.close();
+			}
+		}));
+
+	}
+
+	/**
+	 * Open an object from a channel positioned at the start of the object. The
+	 * channel is closed once it has been read, or if reading fails.
+	 *
+	 * @param name
+	 *            The name of the object, used as the image title.
+	 * @param channel
+	 * @return
+	 */
+	public Result open(String name, ReadableByteChannel channel) {
+		return open(name, Channels.newInputStream(channel));
+	}
+
+	/**
+	 * Fail the header future, rather than the pixel future, for files that are
+	 * not ADAC objects.
+	 */
+	private static ADACDecoder check(ADACDecoder ad) throws IOException {
+
+		if (ad.getHeader().getLabelCount() == 0 || ad.getFrameSize() <= 0) {
+			ad.close();
+			throw new IOException("Not an ADAC image file");
+		}
+		return ad;
+
+	}
+
+	private static ADACFrameSource readAndClose(ADACDecoder ad, Closeable in) throws IOException {
+
+		try {
+			return ADACPixelStore.read(ad);
+		} finally {
+			in.close();
+		}
+
+	}
+
+	private <T> CompletableFuture<T> submit(final Task<T> task) {
+
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		try {
+
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						future.complete(task.call());
+					} catch (Throwable e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+
+		} catch (RuntimeException e) {
+			// Rejected: nothing will read or close the source
+			future.completeExceptionally(e);
+			try {
+				task.abandon();
+			} catch (IOException ignored) {
+			}
+		}
+
+		return future;
+
+	}
+
+	/**
+	 * Run a step on the executor once the header has been read. If the header
+	 * fails, so does the step. If the executor rejects the step, the step
+	 * fails and the decoder and its source are closed.
+	 */
+	private <T> CompletableFuture<T> then(CompletableFuture<ADACDecoder> header, final Step<T> step) {
+
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		header.whenComplete(new BiConsumer<ADACDecoder, Throwable>() {
+			public void accept(final ADACDecoder ad, Throwable failure) {
+
+				if (failure != null) {
+					future.completeExceptionally(failure);
+					return;
+				}
+
+				try {
+
+					executor.execute(new Runnable() {
+						public void run() {
+							try {
+								future.complete(step.call(ad));
+							} catch (Throwable e) {
+								future.completeExceptionally(e);
+							}
+						}
+					});
+
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+					try {
+						ad.close();
+					} catch (IOException ignored) {
+					}
+					try {
+						step.abandon(ad);
+					} catch (IOException ignored) {
+					}
+				}
+
+			}
+		});
+
+		return future;
+
+	}
+
+	private static abstract class Task<T> {
+
+		abstract T call() throws IOException;
+
+		/**
+		 * Release the source if the task is never run.
+		 */
+		void abandon() throws IOException {
+		}
+
+	}
+
+	private static abstract class Step<T> {
+
+		abstract T call(ADACDecoder ad) throws IOException;
+
+		/**
+		 * Release anything besides the decoder if the step is never run.
+		 */
+		void abandon(ADACDecoder ad) throws IOException {
+		}
+
+	}
+
+	/**
+	 * The futures of one open.
+	 */
+	public static class Result {
+
+		private final String name;
+		private final CompletableFuture<ADACDecoder> decoder;
+		private final CompletableFuture<ADACHeader> header;
+		private final CompletableFuture<ADACFrameSource> pixels;
+
+		Result(String name, CompletableFuture<ADACDecoder> decoder, CompletableFuture<ADACFrameSource> pixels) {
+
+			this.name = name;
+			this.decoder = decoder;
+			this.pixels = pixels;
+
+			header = decoder.thenApply(new Function<ADACDecoder, ADACHeader>() {
+				public ADACHeader apply(ADACDecoder ad) {
+					return ad.getHeader();
+				}
+			});
+
+		}
+
+		/**
+		 * Get the name of the object.
+		 *
+		 * @return
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Get the decoded header, which completes before the pixel data. The
+		 * header is an immutable snapshot and may be shared between threads;
+		 * the source it was read from is managed by the importer, so use
+		 * {@link #getPixels()} for pixel data.
+		 *
+		 * @return
+		 */
+		public CompletableFuture<ADACHeader> getHeader() {
+			return header;
+		}
+
+		/**
+		 * Get the pixel data.
+		 *
+		 * @return
+		 */
+		public CompletableFuture<ADACFrameSource> getPixels() {
+			return pixels;
+		}
+
+		/**
+		 * Get an image over the pixel data, with frames decoded as they are
+		 * viewed, laid out and calibrated as by {@link Import_ADAC_image}.
+		 *
+		 * @return
+		 */
+		public CompletableFuture<ImagePlus> getImage() {
+
+			return pixels.thenApply(new Function<ADACFrameSource, ImagePlus>() {
+				public ImagePlus apply(ADACFrameSource source) {
+
+					ADACDecoder ad = decoder.join();
+					ImagePlus imp = new ImagePlus();
+					Import_ADAC_image.setImage(imp, name, new ADACVirtualStack(source, ad.getHeader()), ad);
+					imp.setCalibration(Import_ADAC_image.makeCalibration(ad));
+					return imp;
+
+				}
+			});
+
+		}
+
+	}
+
+}
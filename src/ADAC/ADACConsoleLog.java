@@ -0,0 +1,30 @@
+package ADAC;
+
+/**
+ * {@link ADACLog} for headless use. Errors always go to standard error; log
+ * messages only when verbose.
+ *
+ * @author neil
+ *
+ */
+public class ADACConsoleLog implements ADACLog {
+
+	private final boolean verbose;
+
+	public ADACConsoleLog(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	public void log(String text) {
+
+		if (verbose) {
+			System.err.println(text);
+		}
+
+	}
+
+	public void error(String title, String text) {
+		System.err.println(title + ": " + text);
+	}
+
+}
@@ -1,47 +1,54 @@
 package ADAC;
 
 import java.io.BufferedInputStream;
-import java.io.FileInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 
 /**
  * Create an ADACDecoder object. The object holds the header information in a
- * retrievable format using Maps containing byte, float, short or integer key
- * value pairs. Keys are described in {@link ADACDictionary}
+ * retrievable format backed by an {@link ADACHeader}, which decodes byte,
+ * float, short or integer values on request. Keys are described in
+ * {@link ADACDictionary}
  * 
  * @author neil
  *
  */
-public class ADACDecoder implements KvpListener {
+public class ADACDecoder implements KvpListener, Closeable {
 
-	private final ADACLog logger;
-	private final ArrayList<ADACKvp> keyList = new ArrayList<ADACKvp>();
+	// Shared by every decoder; see setMetrics
+	private static volatile ADACMetrics metrics = ADACMetrics.NONE;
 
-	private Boolean isGated = null;
+	private static final int CALIB_KEY = ExtrasBlock.key(ExtrasKvp.CALIB_KEY);
 
-	private BufferedInputStream f;
-	private BufferedInputStream inputStream;
+	static {
+		String path = System.getProperty(ADACFileMetrics.PROPERTY);
+		if (path != null && path.length() > 0) {
+			ADACFileMetrics.install(new File(path));
+		}
+	}
 
-	private byte[] valHeaders;
+	private final ADACLog logger;
+
+	// The source of the header, left open for reading the pixel data. Only
+	// one of these is set.
+	private BufferedInputStream f;
+	private FileChannel channel;
 
-	private ByteBuffer keyBuffer;
-	private ByteBuffer valBuffer;
+	// True if the decoder opened the source and so must close it
+	private boolean ownsSource;
 
-	private Map<String, String> extrasMap = new HashMap<String, String>();
-	private final Map<Short, Float> floatsMap = new HashMap<Short, Float>();
-	private final Map<Short, Integer> intsMap = new HashMap<Short, Integer>();
-	private final Map<Short, Short> shortsMap = new HashMap<Short, Short>();
-	private final Map<Short, String> stringsMap = new HashMap<Short, String>();
+	private ADACHeader header;
 
 	/**
 	 * Create an ADACDecoder object. The object holds the header information in
-	 * a retrievable format using Maps containing byte, float, short or integer
-	 * key value pairs. Keys are described in {@link ADACDictionary}
+	 * a retrievable format backed by an {@link ADACHeader}, which decodes byte,
+	 * float, short or integer values on request. Keys are described in
+	 * {@link ADACDictionary}
 	 * 
 	 * @param directory
 	 *            The directory containing the ADAC object for decoding.
@@ -60,17 +67,20 @@ public class ADACDecoder implements KvpListener {
 
 	/**
 	 * Create an ADACDecoder object. The object holds the header information in
-	 * a retrievable format using Maps containing byte, float, short or integer
-	 * key value pairs. Keys are described in {@link ADACDictionary}
+	 * a retrievable format backed by an {@link ADACHeader}, which decodes byte,
+	 * float, short or integer values on request. Keys are described in
+	 * {@link ADACDictionary}
 	 * 
 	 * @param directory
 	 *            The directory containing the ADAC object for decoding.
 	 * @param fileName
 	 *            The filename of the ADAC object for decoding.
 	 * @param bis
-	 *            The {@link BufferedInputStream} to read the file into. If this
-	 *            is null, a new {@link BufferedInputStream} is created from the
-	 *            director and filename.
+	 *            The {@link BufferedInputStream} to read the file from. The
+	 *            stream is left positioned after the header; see
+	 *            {@link #getImageStream()}. If this is null, the file is opened
+	 *            from the directory and filename and read with a single
+	 *            positional read; see {@link #getChannel()}.
 	 * @param adacLog
 	 *            The calling class must implement the {@link ADACLog}
 	 *            interface.
@@ -81,22 +91,33 @@ public class ADACDecoder implements KvpListener {
 		logger = adacLog;
 		logger.log("\nADACDecoder: decoding " + fileName);
 
-		inputStream = bis;
+		if (bis != null) {
+
+			f = bis;
+
+			// Copy header into a byte array for lazy decoding
+			ADACMetrics m = metrics;
+			long start = m.start();
+			byte[] bytHeader = new byte[ADACDictionary.IM_OFFSET];
+			readFully(f, bytHeader);
+			m.stop(ADACMetrics.Stage.HEADER_READ, start, bytHeader.length);
+
+			header = ADACHeader.wrap(bytHeader);
 
-		if (inputStream != null) {
-			f = inputStream;
 		} else {
-			f = new BufferedInputStream(new FileInputStream(directory + fileName));
-		}
 
-		// Copy header into a byteBuffer for parsing forwards and backwards
-		byte[] bytHeader = new byte[ADACDictionary.LABEL_OFFSET];
-		valHeaders = new byte[ADACDictionary.IM_OFFSET];
-		f.read(bytHeader, 0, bytHeader.length);
-		f.read(valHeaders, ADACDictionary.LABEL_OFFSET, valHeaders.length - ADACDictionary.LABEL_OFFSET);
+			RandomAccessFile raf = new RandomAccessFile(directory + fileName, "r");
+			channel = raf.getChannel();
+			ownsSource = true;
+
+			try {
+				header = ADACHeader.read(channel);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
 
-		keyBuffer = ByteBuffer.wrap(bytHeader);
-		valBuffer = ByteBuffer.wrap(valHeaders);
+		}
 
 		// Parse the header
 		parseHeader();
@@ -104,128 +125,312 @@ public class ADACDecoder implements KvpListener {
 	}
 
 	/**
-	 * Get the bit depth of the image
+	 * Create an ADACDecoder object over a header that has already been read.
+	 * There is no source to read pixel data from.
 	 * 
-	 * @return
+	 * @param adacHeader
+	 *            The header.
+	 * @param adacLog
+	 *            The calling class must implement the {@link ADACLog}
+	 *            interface.
 	 */
-	public short getBitDepth() {
+	public ADACDecoder(ADACHeader adacHeader, ADACLog adacLog) {
 
-		return getShort(ADACDictionary.PIXEL_BIT_DEPTH);
+		logger = adacLog;
+		header = adacHeader;
 
 	}
 
 	/**
-	 * Return a floating point value represented by the key argument (a
-	 * near-definitive list is given in the dictionary class).
+	 * Create an ADACDecoder object from a channel open on an ADAC object. The
+	 * header is read with a single positional read and the channel is left
+	 * open for reading the pixel data.
 	 * 
-	 * @param dictionaryKey
+	 * @param fileChannel
+	 *            Channel open on the ADAC object. It belongs to the caller and
+	 *            is not closed by {@link #close()}.
+	 * @param adacLog
+	 *            The calling class must implement the {@link ADACLog}
+	 *            interface.
+	 * @throws IOException
+	 */
+	public ADACDecoder(FileChannel fileChannel, ADACLog adacLog) throws IOException {
+
+		logger = adacLog;
+		channel = fileChannel;
+		header = ADACHeader.read(channel);
+
+		// Parse the header
+		parseHeader();
+
+	}
+
+	/**
+	 * Open an ADAC object, taking its header from the shared
+	 * {@link ADACHeaderCache} when the file has not changed since it was last
+	 * read. The file is opened once, as by
+	 * {@link #ADACDecoder(String, String, ADACLog)}; on a cache miss the header
+	 * is read from the same channel the pixel data is then read from.
+	 * 
+	 * @param directory
+	 *            The directory containing the ADAC object for decoding.
+	 * @param fileName
+	 *            The filename of the ADAC object for decoding.
+	 * @param adacLog
+	 *            The calling class must implement the {@link ADACLog}
+	 *            interface.
 	 * @return
+	 * @throws IOException
 	 */
-	public float getFloat(short dictionaryKey) {
-		return floatsMap.get(dictionaryKey);
+	public static ADACDecoder open(String directory, String fileName, ADACLog adacLog) throws IOException {
+
+		File file = new File(directory + fileName);
+		adacLog.log("\nADACDecoder: decoding " + fileName);
+
+		// One open serves both the header, on a cache miss, and the pixels
+		return open(file, new RandomAccessFile(file, "r").getChannel(), adacLog);
+
 	}
 
 	/**
-	 * get a string containing all the found key-value pairs.
+	 * Decode the header of a file from a channel open on it, using the shared
+	 * {@link ADACHeaderCache}. The decoder takes over the channel and closes it
+	 * in {@link #close()}, or here if decoding fails.
 	 * 
+	 * @param file
+	 * @param fileChannel
+	 * @param adacLog
 	 * @return
+	 * @throws IOException
 	 */
-	public String toString() {
+	static ADACDecoder open(File file, FileChannel fileChannel, ADACLog adacLog) throws IOException {
+
+		try {
+
+			ADACDecoder ad = new ADACDecoder(ADACHeaderCache.getShared().get(file, fileChannel), adacLog);
+			ad.channel = fileChannel;
+			ad.ownsSource = true;
+			ad.parseHeader();
 
-		StringBuffer header = new StringBuffer();
+			return ad;
 
-		Iterator<ADACKvp> it = keyList.iterator();
-		while (it.hasNext()) {
-			ADACKvp ak = it.next();
-			header.append(ADACDictionary.descriptions[ak.getKeyNum()]);
-			header.append(" = ");
-			header.append(ak.getString());
-			header.append("\n");
+		} catch (IOException e) {
+			fileChannel.close();
+			throw e;
+		} catch (RuntimeException e) {
+			fileChannel.close();
+			throw e;
 		}
 
-		return header.toString().trim();
 	}
 
 	/**
-	 * Get the length of time of the acquisition of each frame.
+	 * Get the metrics that decoding is recorded to.
 	 * 
 	 * @return
 	 */
-	public double getFrameTime() {
+	public static ADACMetrics getMetrics() {
+		return metrics;
+	}
 
-		// Convert from milliseconds to seconds
-		return getInteger(ADACDictionary.FRAME_TIME) / 1000;
+	/**
+	 * Set the metrics that all decoding is recorded to, or
+	 * {@link ADACMetrics#NONE} (or null) to stop recording.
+	 * 
+	 * @param adacMetrics
+	 */
+	public static void setMetrics(ADACMetrics adacMetrics) {
+		metrics = adacMetrics != null ? adacMetrics : ADACMetrics.NONE;
+	}
+
+	/**
+	 * Close the file opened by the decoder, if any. Streams and channels passed
+	 * in by the caller are left open.
+	 */
+	public void close() throws IOException {
+
+		if (ownsSource && channel != null) {
+			channel.close();
+		}
 
 	}
 
 	/**
-	 * Make an {@link ADACKey} object from the next six bytes of data.
+	 * Get the channel the header was read from, or null if the header came
+	 * from a stream. Pixel data can be read from it with positional reads
+	 * starting at {@link #getImageOffset()}.
+	 * 
+	 * @return
+	 */
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Get the stream the header was read from, positioned at
+	 * {@link #getImageOffset()} by skipping any gated sub-headers. Returns null
+	 * if the header was read from a channel. Call once, before reading any
+	 * pixel data from the stream.
 	 * 
-	 * @return the {@link ADACKey}
+	 * @return
 	 * @throws IOException
 	 */
-	private ADACKey getKeys() throws IOException {
+	public InputStream getImageStream() throws IOException {
 
-		// Get the key number for cross-referencing with the dictionary
-		short num = keyBuffer.getShort();
+		if (f == null) {
+			return null;
+		}
 
-		// The next byte is the data type. This explicit declaration
-		// is redundant as we have the information in the dictionary.
-		// Dictionary definition is preferred so that we can override
-		// special items like "extras".
-		keyBuffer.get();
+		long skip = getImageOffset() - ADACDictionary.IM_OFFSET;
+		while (skip > 0) {
+			long skipped = f.skip(skip);
+			if (skipped <= 0) {
+				if (f.read() < 0) {
+					throw new EOFException("ADAC sub-headers truncated");
+				}
+				skipped = 1;
+			}
+			skip -= skipped;
+		}
 
-		// The next byte is unused by definition
-		keyBuffer.get();
+		return f;
 
-		// Get the offset in bytes to the field value
-		short fieldOffset = keyBuffer.getShort();
+	}
 
-		return new ADACKey(num, fieldOffset);
+	/**
+	 * Fill the array from the stream, reading until it is full or the stream
+	 * ends.
+	 * 
+	 * @param in
+	 * @param bytes
+	 * @throws IOException
+	 *             if the stream ends first.
+	 */
+	private static void readFully(InputStream in, byte[] bytes) throws IOException {
+
+		int n = 0;
+		while (n < bytes.length) {
+			int count = in.read(bytes, n, bytes.length - n);
+			if (count < 0) {
+				throw new EOFException("File too short for an ADAC header");
+			}
+			n += count;
+		}
 
 	}
 
 	/**
-	 * Get the image height in pixel units
+	 * Get the bit depth of the image
 	 * 
 	 * @return
 	 */
-	public short getHeight() {
+	public short getBitDepth() {
+		return header.getBitDepth();
+	}
+
+	/**
+	 * Return a floating point value represented by the key argument (a
+	 * near-definitive list is given in the dictionary class).
+	 * 
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public float getFloat(short dictionaryKey) {
+		return header.getFloat(dictionaryKey);
+	}
 
-		return getShort(ADACDictionary.Y_DIMENSIONS);
+	/**
+	 * Get the lightweight header view backing this decoder. The header is
+	 * immutable, so it can be handed to other threads while the decoder, which
+	 * owns the file or stream, stays with one.
+	 * 
+	 * @return
+	 */
+	public ADACHeader getHeader() {
+		return header;
 	}
 
 	/**
-	 * Get the offset, in bytes, to the image data within the file
+	 * get a string containing all the found key-value pairs.
 	 * 
 	 * @return
 	 */
-	public int getImageOffset() {
+	public String toString() {
 
-		if (isGated()) {
+		StringBuffer dump = new StringBuffer();
 
-			if (isReconstruction()) {
+		for (int i = 0; i < header.getLabelCount(); i++) {
+			short keyNum = header.getKeyNum(i);
+			dump.append(ADACDictionary.descriptions[keyNum]);
+			dump.append(" = ");
+			dump.append(header.getValueString(keyNum));
+			dump.append("\n");
+		}
 
-				// Must have a gated reconstruction. For each gated interval
-				// there is an extra 128 byte header (beginning "adac01") block
-				// starting at the normal image offset location. Add this to the
-				// offset:
-				return ADACDictionary.IM_OFFSET + getNumberOfGatedIntervals() * 128;
+		return dump.toString().trim();
+	}
 
-			} else {
+	/**
+	 * Get the length of time of the acquisition of each frame in seconds.
+	 * 
+	 * @return
+	 */
+	public double getFrameTime() {
 
-				// Gated SPECT data set. For each azimuth there is an additional
-				// 1664 byte header (beginning "adac01") at the normal image
-				// offset location. Add this to the image offset.
-				return ADACDictionary.IM_OFFSET + getNumberOfGatedIntervals() * 1664;
+		// Convert from milliseconds to seconds
+		return getInteger(ADACDictionary.FRAME_TIME) / 1000.0;
 
-			}
+	}
 
-		} else {
-			// Non gated data - simplest case
-			return ADACDictionary.IM_OFFSET;
-		}
+	/**
+	 * Get the number of bytes used to store each pixel. Objects without a bit
+	 * depth are treated as 16 bit, as in the importer.
+	 * 
+	 * @return
+	 */
+	public int getBytesPerPixel() {
+		return header.getBytesPerPixel();
+	}
+
+	/**
+	 * Get the number of bytes used to store each image frame.
+	 * 
+	 * @return
+	 */
+	public int getFrameSize() {
+		return header.getFrameSize();
+	}
+
+	/**
+	 * Get the offset, in bytes, of the frame at a slice and gated interval;
+	 * see {@link ADACHeader#getFrameOffset(int, int)}.
+	 * 
+	 * @param position
+	 *            Zero-based slice, projection or frame within the interval.
+	 * @param interval
+	 *            Zero-based gated interval; zero for data that is not gated.
+	 * @return
+	 */
+	public long getFrameOffset(int position, int interval) {
+		return header.getFrameOffset(position, interval);
+	}
 
+	/**
+	 * Get the image height in pixel units
+	 * 
+	 * @return
+	 */
+	public short getHeight() {
+		return header.getHeight();
+	}
+
+	/**
+	 * Get the offset, in bytes, to the image data within the file
+	 * 
+	 * @return
+	 */
+	public int getImageOffset() {
+		return header.getImageOffset();
 	}
 
 	/**
@@ -236,7 +441,7 @@ public class ADACDecoder implements KvpListener {
 	 * @return
 	 */
 	public int getInteger(short dictionaryKey) {
-		return intsMap.get(dictionaryKey);
+		return header.getInteger(dictionaryKey);
 	}
 
 	/**
@@ -245,7 +450,7 @@ public class ADACDecoder implements KvpListener {
 	 * @return
 	 */
 	public short getNumberOfGatedIntervals() {
-		return getShort(ADACDictionary.NUMBER_OF_IMAGE_SETS);
+		return header.getNumberOfGatedIntervals();
 	}
 
 	/**
@@ -254,18 +459,18 @@ public class ADACDecoder implements KvpListener {
 	 * @return
 	 */
 	public int getNumberOfImages() {
+		return header.getNumberOfImages();
+	}
 
-		short zdim = getZDim();
-		zdim = zdim > 0 ? zdim : 1;
-
-		short slices = getNumberOfSlices();
-		slices = slices > 0 ? slices : 1;
-
-		short intervals = getNumberOfGatedIntervals();
-		intervals = intervals > 0 ? intervals : 1;
-
-		return zdim * slices * intervals;
-
+	/**
+	 * Get the number of frames in each gated interval: slices for a gated
+	 * reconstruction, projections for gated SPECT. For data that is not gated
+	 * this is the total number of images.
+	 * 
+	 * @return
+	 */
+	public int getFramesPerInterval() {
+		return header.getFramesPerInterval();
 	}
 
 	/**
@@ -274,7 +479,7 @@ public class ADACDecoder implements KvpListener {
 	 * @return
 	 */
 	public short getNumberOfSlices() {
-		return getShort(ADACDictionary.RECONSTRUCTED_SLICES);
+		return header.getNumberOfSlices();
 	}
 
 	/**
@@ -295,7 +500,7 @@ public class ADACDecoder implements KvpListener {
 		float zoom = getFloat(ADACDictionary.ZOOM);
 
 		// Get calibration factor (CALB)
-		String calString = extrasMap.get(ExtrasKvp.CALIB_KEY);
+		String calString = header.getExtrasBlock().get(CALIB_KEY);
 
 		// Some wholebody images have height > width. Typically 1024x512.
 		// Crocodile eats the biggest.
@@ -348,7 +553,7 @@ public class ADACDecoder implements KvpListener {
 	 * @return
 	 */
 	public short getShort(short dictionaryKey) {
-		return shortsMap.get(dictionaryKey);
+		return header.getShort(dictionaryKey);
 	}
 
 	/**
@@ -359,7 +564,7 @@ public class ADACDecoder implements KvpListener {
 	 * @return
 	 */
 	public String getString(short dictionaryKey) {
-		return stringsMap.get(dictionaryKey);
+		return header.getString(dictionaryKey);
 	}
 
 	/**
@@ -368,8 +573,7 @@ public class ADACDecoder implements KvpListener {
 	 * @return
 	 */
 	public short getWidth() {
-
-		return getShort(ADACDictionary.X_DIMENSIONS);
+		return header.getWidth();
 	}
 
 	/**
@@ -379,7 +583,7 @@ public class ADACDecoder implements KvpListener {
 	 * @return
 	 */
 	public short getZDim() {
-		return getShort(ADACDictionary.Z_DIMENSIONS);
+		return header.getZDim();
 	}
 
 	/**
@@ -389,25 +593,7 @@ public class ADACDecoder implements KvpListener {
 	 *         or planar.
 	 */
 	public boolean isGated() {
-
-		if (isGated == null) {
-
-			String AD_Type = getString(ADACDictionary.DATA_TYPE);
-
-			if (AD_Type != null && AD_Type.startsWith("G")) {
-
-				// GE - Gated ECT
-				// GP - Gated planar (although these usually just get given DP)
-				isGated = true;
-
-			} else {
-
-				isGated = false;
-			}
-		}
-
-		return isGated;
-
+		return header.isGated();
 	}
 
 	/**
@@ -417,7 +603,7 @@ public class ADACDecoder implements KvpListener {
 	 *         false otherwise.
 	 */
 	public boolean isReconstruction() {
-		return getShort(ADACDictionary.RECONSTRUCTED_SLICES) > 0;
+		return header.isReconstruction();
 	}
 
 	/**
@@ -432,59 +618,13 @@ public class ADACDecoder implements KvpListener {
 		// ////////////////////////////////////////////////////////////
 
 		// First 10 bytes reserved for preamble
-		byte[] sixBytes = new byte[6];
-		keyBuffer.get(sixBytes, 0, 6);
-		logger.log(new String(sixBytes) + "\n"); // says adac01
-
-		try {
-
-			short labels = keyBuffer.getShort();
-			logger.log(Integer.toString(labels)); // Number of labels in header
-			logger.log(Integer.toString(keyBuffer.get())); // Number of
-															// sub-headers
-			logger.log(Integer.toString(keyBuffer.get())); // Unused byte
-
-			// For each header field available.. get them
-			for (short i = 0; i < labels; i++) {
+		logger.log(header.getPreamble() + "\n"); // says adac01
+		logger.log(Integer.toString(header.getLabelCount())); // Number of labels
 
-				// Attempt to find the next key...
-				// ...the keynum (description)
-				// ...the offset to the value
-				ADACKey key = getKeys();
-				switch (key.getDataType()) {
-
-				case ADACDictionary.BYTE:
-
-					keyList.add(new ByteKvp(this, key));
-					break;
-
-				case ADACDictionary.SHORT:
-
-					keyList.add(new ShortKvp(this, key));
-					break;
-
-				case ADACDictionary.INT:
-
-					keyList.add(new IntKvp(this, key));
-					break;
-
-				case ADACDictionary.FLOAT:
-
-					keyList.add(new FloatKvp(this, key));
-					break;
-
-				case ADACDictionary.EXTRAS:
-
-					keyList.add(new ExtrasKvp(this, key));
-					break;
-
-				}
-
-			}
-
-		} catch (IOException e) {
+		if (header.getLabelCount() == 0) {
 			logger.error("ADAC Decoder", "Failed to retrieve ADAC image file header. " + "Is this an ADAC image file?");
 		}
+
 	}
 
 	/**
@@ -496,14 +636,9 @@ public class ADACDecoder implements KvpListener {
 		int len = ADACDictionary.valLength[byteKvp.getKeyNum()];
 		byte[] bytes = new byte[len];
 
-		// Move the value buffer to the correct location
-		valBuffer.position(byteKvp.getFieldOffset());
-		valBuffer.get(bytes, 0, len);
+		header.copyBytes(byteKvp.getFieldOffset(), bytes, len);
 		byteKvp.setString(bytes);
 
-		stringsMap.put(byteKvp.getKeyNum(), byteKvp.getString());
-		logger.log(byteKvp.getLogString());
-
 	}
 
 	/**
@@ -512,14 +647,10 @@ public class ADACDecoder implements KvpListener {
 	public void read(ExtrasKvp extraKvp) {
 
 		byte[] bytes = new byte[ExtrasKvp.LENGTH];
-
-		// Move the value buffer to the correct location
-		valBuffer.position(extraKvp.getFieldOffset());
-		valBuffer.get(bytes, 0, ExtrasKvp.LENGTH);
+		header.copyBytes(extraKvp.getFieldOffset(), bytes, ExtrasKvp.LENGTH);
 
 		// Set the bytes string of the extras object
 		extraKvp.setData(bytes);
-		extrasMap = extraKvp.getMap();
 
 	}
 
@@ -527,36 +658,21 @@ public class ADACDecoder implements KvpListener {
 	 * Read a floating point key-value pair.
 	 */
 	public void read(FloatKvp floatKvp) {
-
-		float floatValue = valBuffer.getFloat(floatKvp.getFieldOffset());
-		floatKvp.setValue(floatValue);
-		floatsMap.put(floatKvp.getKeyNum(), floatKvp.getValue());
-		logger.log(floatKvp.getLogString());
-
+		floatKvp.setValue(Float.intBitsToFloat(header.getIntAt(floatKvp.getFieldOffset())));
 	}
 
 	/**
 	 * Read an integer key-value pair.
 	 */
 	public void read(IntKvp intKvp) {
-
-		int m_Int = valBuffer.getInt(intKvp.getFieldOffset());
-		intKvp.setValue(m_Int);
-		intsMap.put(intKvp.getKeyNum(), intKvp.getValue());
-		logger.log(intKvp.getLogString());
-
+		intKvp.setValue(header.getIntAt(intKvp.getFieldOffset()));
 	}
 
 	/**
 	 * Read a short integer key-value pair.
 	 */
 	public void read(ShortKvp shortKvp) {
-
-		short shortValue = valBuffer.getShort(shortKvp.getFieldOffset());
-		shortKvp.setValue(shortValue);
-		shortsMap.put(shortKvp.getKeyNum(), shortKvp.getValue());
-		logger.log(shortKvp.getLogString());
-
+		shortKvp.setValue(header.getShortAt(shortKvp.getFieldOffset()));
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,790 @@
+package ADAC;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds ADAC objects holding the same pixel data, such as acquisitions
+ * re-saved under a new name after reprocessing or a header edit. The pixel
+ * data of each object, from {@link ADACHeader#getImageOffset()} to the end of
+ * the file, is fingerprinted with {@link XXHash64}, and objects are grouped by
+ * fingerprint and length.
+ *
+ * Each file is read once, front to back: the header is decoded from the first
+ * buffer read and the file is hashed as it streams past, the header and
+ * sub-headers separately from the pixel data. The fingerprints are kept in an
+ * index file, and files whose size and modification time are unchanged are
+ * not read again.
+ *
+ * Duplicates are reported from the fingerprints alone, one row per file with
+ * the first path of each group as the original. A copy is
+ * <code>identical</code> if its header hashes the same too, or
+ * <code>pixels</code> if only its pixel data does. With <code>-link</code>,
+ * identical copies are compared byte for byte with the original and then
+ * replaced by hard links to it. Copies whose headers differ are only reported,
+ * since linking them would lose the edits.
+ *
+ * <pre>
+ * java -cp ADAC_Utils.jar ADAC.ADACDeduplicator -index archive.dup /archive
+ * java -cp ADAC_Utils.jar ADAC.ADACDeduplicator -index archive.dup -link /archive
+ * </pre>
+ *
+ * @author neil
+ *
+ */
+public class ADACDeduplicator {
+
+	private static final String MAGIC = "ADACDUP2";
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final Map<String, Fingerprint> previous;
+	private Fingerprint[] fingerprints = new Fingerprint[0];
+
+	private final AtomicLong hashed = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	/**
+	 * The fingerprint of the pixel data of one file.
+	 */
+	public static class Fingerprint {
+
+		private final String path;
+		private final long size;
+		private final long modified;
+		private final long pixelBytes;
+		private final long hash;
+		private final long headerHash;
+
+		Fingerprint(String path, long size, long modified, long pixelBytes, long hash, long headerHash) {
+
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.pixelBytes = pixelBytes;
+			this.hash = hash;
+			this.headerHash = headerHash;
+
+		}
+
+		/**
+		 * Get the absolute path of the file.
+		 *
+		 * @return
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * Get the size of the file in bytes.
+		 *
+		 * @return
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Get the modification time of the file in milliseconds.
+		 *
+		 * @return
+		 */
+		public long getModified() {
+			return modified;
+		}
+
+		/**
+		 * Get the length of the pixel data in bytes, or -1 if the file is not
+		 * an ADAC object.
+		 *
+		 * @return
+		 */
+		public long getPixelBytes() {
+			return pixelBytes;
+		}
+
+		/**
+		 * Get the XXH64 hash of the pixel data.
+		 *
+		 * @return
+		 */
+		public long getHash() {
+			return hash;
+		}
+
+		/**
+		 * Get the XXH64 hash of everything before the pixel data: the header
+		 * and any sub-headers.
+		 *
+		 * @return
+		 */
+		public long getHeaderHash() {
+			return headerHash;
+		}
+
+		/**
+		 * Check whether the file is an ADAC object.
+		 *
+		 * @return
+		 */
+		public boolean isADAC() {
+			return pixelBytes >= 0;
+		}
+
+		/**
+		 * Check whether another file holds the same pixel data, going by the
+		 * fingerprint.
+		 *
+		 * @param other
+		 * @return
+		 */
+		public boolean matches(Fingerprint other) {
+			return pixelBytes > 0 && pixelBytes == other.pixelBytes && hash == other.hash;
+		}
+
+		/**
+		 * Check whether another file is a copy of this one, header and all,
+		 * going by the fingerprint.
+		 *
+		 * @param other
+		 * @return
+		 */
+		public boolean isCopyOf(Fingerprint other) {
+			return matches(other) && size == other.size && headerHash == other.headerHash;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%016x\t%d\t%s", hash, pixelBytes, path);
+		}
+
+	}
+
+	/**
+	 * Create a deduplicator that reads every file.
+	 */
+	public ADACDeduplicator() {
+		this(new TreeMap<String, Fingerprint>());
+	}
+
+	private ADACDeduplicator(Map<String, Fingerprint> previous) {
+		this.previous = previous;
+	}
+
+	public static void main(String[] args) {
+
+		File indexFile = null;
+		boolean link = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<Path> roots = new ArrayList<Path>();
+
+		try {
+
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-link")) {
+					link = true;
+				} else if (args[i].equals("-index") && i + 1 < args.length) {
+					indexFile = new File(args[++i]);
+				} else if (args[i].equals("-threads") && i + 1 < args.length) {
+					threads = Integer.parseInt(args[++i]);
+				} else {
+					roots.add(Paths.get(args[i]));
+				}
+			}
+
+		} catch (NumberFormatException e) {
+			roots.clear();
+		}
+
+		if (roots.isEmpty() || threads < 1) {
+			System.err.println("Usage: ADACDeduplicator [-index file] [-link] [-threads n] <directory> ...");
+			System.exit(1);
+		}
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+
+			ADACDeduplicator dedup = indexFile != null && indexFile.exists() ? load(indexFile)
+					: new ADACDeduplicator();
+
+			long start = System.nanoTime();
+			dedup.update(roots, pool);
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			List<List<Fingerprint>> groups = dedup.getDuplicates();
+
+			// Keep the fingerprints even if linking goes wrong
+			if (indexFile != null) {
+				dedup.save(indexFile);
+			}
+
+			long copies = 0;
+			long duplicateBytes = 0;
+			int linked = 0;
+
+			for (List<Fingerprint> group : groups) {
+
+				Fingerprint original = group.get(0);
+				out.println(original + "\toriginal");
+
+				for (int i = 1; i < group.size(); i++) {
+
+					Fingerprint copy = group.get(i);
+					String status;
+
+					try {
+
+						if (isSameFile(original, copy)) {
+							status = "linked";
+						} else {
+
+							copies++;
+							duplicateBytes += copy.getPixelBytes();
+
+							if (!copy.isCopyOf(original)) {
+								status = "pixels";
+							} else if (!link) {
+								status = "identical";
+							} else if (!isIdentical(original, copy)) {
+								// Changed since it was fingerprinted
+								status = "changed";
+							} else {
+								dedup.link(original, copy);
+								status = "linked";
+								linked++;
+							}
+
+						}
+
+					} catch (IOException e) {
+						status = link ? "link-failed" : "unreadable";
+						System.err.println("ADACDeduplicator: " + copy.getPath() + ": " + e.getMessage());
+					}
+
+					out.println(copy + "\t" + status);
+
+				}
+
+			}
+			out.flush();
+
+			if (indexFile != null && linked > 0) {
+				dedup.save(indexFile);
+			}
+
+			System.err.printf("Hashed %d files (%d unchanged, %d skipped) in %.1f s: %.0f MB/s%n", dedup.getFilesHashed(),
+					dedup.getFilesReused(), dedup.getFilesSkipped(), seconds, dedup.getBytesRead() / 1e6 / seconds);
+			System.err.printf("%d groups, %d copies holding %.1f MB of duplicate pixel data, %d linked%n",
+					groups.size(), copies, duplicateBytes / 1e6, linked);
+
+		} catch (IOException e) {
+			System.err.println("ADACDeduplicator: " + e.getMessage());
+			System.exit(1);
+		} finally {
+			pool.shutdown();
+		}
+
+	}
+
+	/**
+	 * Fingerprint every file under some directories. Fingerprints loaded from
+	 * an index are reused for files whose size and modification time are
+	 * unchanged; all other files are read. Files that are not ADAC objects are
+	 * kept, without a fingerprint, so they are not read again. Directories and
+	 * files that cannot be read are counted as skipped.
+	 *
+	 * @param roots
+	 * @param pool
+	 *            The pool to read files on.
+	 * @throws IOException
+	 */
+	public void update(List<Path> roots, ForkJoinPool pool) throws IOException {
+
+		final TreeMap<String, BasicFileAttributes> files = new TreeMap<String, BasicFileAttributes>();
+
+		for (Path root : roots) {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (attrs.isRegularFile()) {
+						files.put(file.toAbsolutePath().toString(), attrs);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					// An unreadable directory or file is skipped, not fatal
+					skipped.incrementAndGet();
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+
+		String[] paths = files.keySet().toArray(new String[files.size()]);
+		BasicFileAttributes[] attrs = files.values().toArray(new BasicFileAttributes[files.size()]);
+		Fingerprint[] result = new Fingerprint[paths.length];
+
+		pool.invoke(new HashTask(paths, attrs, result, 0, paths.length));
+
+		// Drop files that could not be read
+		int n = 0;
+		for (Fingerprint f : result) {
+			if (f != null) {
+				result[n++] = f;
+			}
+		}
+		fingerprints = Arrays.copyOf(result, n);
+
+	}
+
+	private Fingerprint fingerprint(String path, BasicFileAttributes attrs) {
+
+		long size = attrs.size();
+		long modified = attrs.lastModifiedTime().toMillis();
+
+		Fingerprint old = previous.get(path);
+		if (old != null && old.size == size && old.modified == modified) {
+			reused.incrementAndGet();
+			return old;
+		}
+
+		try {
+
+			Fingerprint f = fingerprint(Paths.get(path), size, modified);
+			if (f.isADAC()) {
+				hashed.incrementAndGet();
+				bytesRead.addAndGet(size);
+			} else {
+				skipped.incrementAndGet();
+			}
+			return f;
+
+		} catch (IOException e) {
+			// Unreadable, or removed since it was listed
+			skipped.incrementAndGet();
+			return null;
+		}
+
+	}
+
+	/**
+	 * Fingerprint a file in a single sequential pass. The header is decoded
+	 * from the first buffer read, which usually holds the first of the pixel
+	 * data as well. Everything before {@link ADACHeader#getImageOffset()} is
+	 * hashed into the header hash and the rest into the pixel hash as it is
+	 * read.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Fingerprint fingerprint(Path file) throws IOException {
+
+		BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+		return fingerprint(file.toAbsolutePath(), attrs.size(), attrs.lastModifiedTime().toMillis());
+
+	}
+
+	private static Fingerprint fingerprint(Path file, long size, long modified) throws IOException {
+
+		String path = file.toString();
+		if (size < ADACDictionary.IM_OFFSET) {
+			return new Fingerprint(path, size, modified, -1, 0, 0);
+		}
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(size, ADACDictionary.IM_OFFSET)));
+			byte[] bytes = buffer.array();
+
+			while (buffer.position() < ADACDictionary.IM_OFFSET) {
+				if (channel.read(buffer) < 0) {
+					return new Fingerprint(path, size, modified, -1, 0, 0);
+				}
+			}
+
+			ADACHeader header = ADACHeader.wrap(Arrays.copyOf(bytes, ADACDictionary.IM_OFFSET));
+			if (!header.getPreamble().equals("adac01") || header.getLabelCount() == 0) {
+				return new Fingerprint(path, size, modified, -1, 0, 0);
+			}
+
+			XXHash64 headerHash = new XXHash64();
+			XXHash64 hash = new XXHash64();
+			long offset = header.getImageOffset();
+
+			long pos = 0;
+			int n = buffer.position();
+			while (n >= 0) {
+
+				int head = (int) Math.max(0, Math.min(n, offset - pos));
+				headerHash.update(bytes, 0, head);
+				hash.update(bytes, head, n - head);
+				pos += n;
+
+				buffer.clear();
+				n = channel.read(buffer);
+
+			}
+
+			metrics.stop(ADACMetrics.Stage.PIXEL_IO, start, channel.position());
+
+			return new Fingerprint(path, size, modified, hash.getLength(), hash.getValue(), headerHash.getValue());
+
+		} finally {
+			channel.close();
+		}
+
+	}
+
+	/**
+	 * Get every fingerprinted file, in path order.
+	 *
+	 * @return
+	 */
+	public List<Fingerprint> getFingerprints() {
+		return Arrays.asList(fingerprints.clone());
+	}
+
+	/**
+	 * Get the groups of ADAC objects holding the same pixel data, going by
+	 * fingerprint. Each group is in path order, and groups are in order of
+	 * their first path.
+	 *
+	 * @return
+	 */
+	public List<List<Fingerprint>> getDuplicates() {
+
+		Map<String, List<Fingerprint>> groups = new LinkedHashMap<String, List<Fingerprint>>();
+
+		for (Fingerprint f : fingerprints) {
+
+			if (f.pixelBytes <= 0) {
+				continue;
+			}
+
+			String key = f.hash + ":" + f.pixelBytes;
+			List<Fingerprint> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Fingerprint>();
+				groups.put(key, group);
+			}
+			group.add(f);
+
+		}
+
+		List<List<Fingerprint>> duplicates = new ArrayList<List<Fingerprint>>();
+		for (List<Fingerprint> group : groups.values()) {
+			if (group.size() > 1) {
+				duplicates.add(group);
+			}
+		}
+		return duplicates;
+
+	}
+
+	/**
+	 * Check whether two paths are already the same file, such as hard links to
+	 * one another.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isSameFile(Fingerprint a, Fingerprint b) throws IOException {
+		return Files.isSameFile(Paths.get(a.path), Paths.get(b.path));
+	}
+
+	/**
+	 * Compare two files byte for byte, header and all. This reads both files
+	 * again, so is only worth doing as a last check before linking.
+	 *
+	 * @param a
+	 * @param b
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isIdentical(Fingerprint a, Fingerprint b) throws IOException {
+
+		FileChannel ca = FileChannel.open(Paths.get(a.path), StandardOpenOption.READ);
+
+		try {
+
+			FileChannel cb = FileChannel.open(Paths.get(b.path), StandardOpenOption.READ);
+
+			try {
+
+				if (ca.size() != cb.size()) {
+					return false;
+				}
+
+				ByteBuffer ba = ByteBuffer.allocate(BUFFER_SIZE);
+				ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+
+				while (true) {
+
+					ba.clear();
+					bb.clear();
+					int na = fill(ca, ba);
+					int nb = fill(cb, bb);
+
+					if (na != nb || !ba.equals(bb)) {
+						return false;
+					}
+					if (na < BUFFER_SIZE) {
+						return true;
+					}
+
+				}
+
+			} finally {
+				cb.close();
+			}
+
+		} finally {
+			ca.close();
+		}
+
+	}
+
+	private static int fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer.limit();
+
+	}
+
+	/**
+	 * Replace a copy with a hard link to the original. The link is made
+	 * alongside the copy and then moved over it, so the copy is never
+	 * missing. The caller should first check with
+	 * {@link #isIdentical(Fingerprint, Fingerprint)} that nothing is lost.
+	 * Nothing is changed if the link fails.
+	 *
+	 * @param original
+	 * @param copy
+	 * @throws IOException
+	 *             if the files are on different file systems or the file
+	 *             system does not support hard links.
+	 */
+	public void link(Fingerprint original, Fingerprint copy) throws IOException {
+
+		Path target = Paths.get(copy.path);
+		Path temp = target.resolveSibling(target.getFileName() + ".link");
+
+		Files.createLink(temp, Paths.get(original.path));
+		try {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+
+		// The copy now has the size and modification time of the original
+		for (int i = 0; i < fingerprints.length; i++) {
+			if (fingerprints[i] == copy) {
+				fingerprints[i] = new Fingerprint(copy.path, original.size, original.modified, original.pixelBytes,
+						original.hash, original.headerHash);
+			}
+		}
+
+	}
+
+	/**
+	 * Get the number of files read and hashed by the last update.
+	 *
+	 * @return
+	 */
+	public long getFilesHashed() {
+		return hashed.get();
+	}
+
+	/**
+	 * Get the number of files whose fingerprint was taken from the index.
+	 *
+	 * @return
+	 */
+	public long getFilesReused() {
+		return reused.get();
+	}
+
+	/**
+	 * Get the number of files that were not ADAC objects or could not be
+	 * read.
+	 *
+	 * @return
+	 */
+	public long getFilesSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Get the number of bytes read by the last update.
+	 *
+	 * @return
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * Load the fingerprints of an earlier run, to be reused by
+	 * {@link #update(List, ForkJoinPool)}.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ADACDeduplicator load(File file) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+
+		try {
+
+			byte[] magic = new byte[MAGIC.length()];
+			in.readFully(magic);
+			if (!MAGIC.equals(new String(magic, "US-ASCII"))) {
+				throw new IOException(file + " is not an ADAC fingerprint index");
+			}
+
+			int rows = in.readInt();
+			Map<String, Fingerprint> previous = new TreeMap<String, Fingerprint>();
+
+			for (int i = 0; i < rows; i++) {
+				String path = in.readUTF();
+				previous.put(path, new Fingerprint(path, in.readLong(), in.readLong(), in.readLong(), in.readLong(),
+						in.readLong()));
+			}
+
+			ADACDeduplicator dedup = new ADACDeduplicator(previous);
+			dedup.fingerprints = previous.values().toArray(new Fingerprint[rows]);
+			return dedup;
+
+		} finally {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Write the fingerprints to disk.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+
+		// Write alongside and then replace, so a failure leaves the old index
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+
+		try {
+
+			out.writeBytes(MAGIC);
+			out.writeInt(fingerprints.length);
+
+			for (Fingerprint f : fingerprints) {
+				out.writeUTF(f.path);
+				out.writeLong(f.size);
+				out.writeLong(f.modified);
+				out.writeLong(f.pixelBytes);
+				out.writeLong(f.hash);
+				out.writeLong(f.headerHash);
+			}
+
+		} finally {
+			out.close();
+		}
+
+		// Readers see either the old index or the new one, never neither
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	/**
+	 * Fingerprints a range of files, splitting it in half until it is small
+	 * enough to read on one thread.
+	 */
+	private class HashTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private static final int FILES_PER_TASK = 8;
+
+		private final String[] paths;
+		private final BasicFileAttributes[] attrs;
+		private final Fingerprint[] result;
+		private final int from;
+		private final int to;
+
+		HashTask(String[] paths, BasicFileAttributes[] attrs, Fingerprint[] result, int from, int to) {
+
+			this.paths = paths;
+			this.attrs = attrs;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from > FILES_PER_TASK) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new HashTask(paths, attrs, result, from, mid), new HashTask(paths, attrs, result, mid, to));
+				return;
+			}
+
+			for (int i = from; i < to; i++) {
+				result[i] = fingerprint(paths[i], attrs[i]);
+			}
+
+		}
+
+	}
+
+}
@@ -1,5 +1,8 @@
 package ADAC;
 
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
 /**
  * Dictionary for the ADAC image object, including offsets and key-value pair
  * information.
@@ -585,4 +588,29 @@ public class ADACDictionary {
 		valLength[PROGRAM_SPECIFIC] = 800;
 
 	}
+
+	/**
+	 * Look up a key by the name of its constant, such as "PATIENT_ID".
+	 *
+	 * @param name
+	 * @return The key number, or 0 if there is no key of that name.
+	 */
+	public static short getKeyNum(String name) {
+
+		try {
+
+			Field field = ADACDictionary.class.getField(name);
+			if (field.getType() == short.class && Modifier.isStatic(field.getModifiers())) {
+				return field.getShort(null);
+			}
+
+		} catch (NoSuchFieldException e) {
+			// Not a key
+		} catch (IllegalAccessException e) {
+			// Not a key
+		}
+
+		return 0;
+
+	}
 }
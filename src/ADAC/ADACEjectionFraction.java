@@ -0,0 +1,446 @@
+package ADAC;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Left ventricular ejection fraction of a gated blood pool (MUGA) study,
+ * worked out straight from the file. The gated frames are streamed once and
+ * counts summed under the supplied left ventricle and background ROIs, giving
+ * a background corrected volume curve over the cardiac cycle; no ImagePlus is
+ * built, so a backlog of studies can be worked through quickly.
+ *
+ * Gated planar studies are stored either as gated (data type GP, one frame per
+ * interval) or, more often, as dynamics (DP, one frame per gate). Both are
+ * handled; for GP only the first frame (position 0) of each interval is used,
+ * as a planar interval holds one frame and any others are not part of the
+ * cycle. The results can be compared with the ejection fraction and end
+ * diastolic and end systolic frames stored in the header by the acquisition
+ * workstation, and the percentages of cycles it accepted and rejected are
+ * available for flagging poorly gated studies.
+ *
+ * <pre>
+ * ADACEjectionFraction muga = new ADACEjectionFraction(ad);
+ * muga.setLeftVentricle(lv.getBounds(), lvMask);
+ * muga.setBackground(bkg.getBounds(), bkgMask);
+ * muga.measure();
+ * double ef = muga.getEjectionFraction();
+ * </pre>
+ *
+ * @author neil
+ *
+ */
+public class ADACEjectionFraction {
+
+	/**
+	 * Largest difference, in percentage points, between the measured and
+	 * stored ejection fractions accepted by {@link #isConsistent()}.
+	 */
+	public static final double DEFAULT_TOLERANCE = 5;
+
+	/**
+	 * Largest difference, in gates around the cycle, between the measured and
+	 * stored end diastolic and end systolic gates accepted by
+	 * {@link #isConsistent()}. The stored frames are only approximate.
+	 */
+	public static final int DEFAULT_GATE_TOLERANCE = 1;
+
+	private final ADACDecoder ad;
+	private final int width;
+	private final int height;
+	private final int gates;
+	private final boolean byInterval;
+
+	// Pixel indices of the ROIs; a gate without its own ventricle ROI uses
+	// the shared one
+	private int[] ventricle;
+	private final int[][] ventricleByGate;
+	private int[] background;
+
+	private double[] curve;
+	private double[] ventricleCounts;
+	private double[] backgroundCounts;
+
+	/**
+	 * Create an ejection fraction engine over the frames of a gated planar
+	 * study.
+	 *
+	 * @param ad
+	 */
+	public ADACEjectionFraction(ADACDecoder ad) {
+
+		this.ad = ad;
+		width = ad.getWidth();
+		height = ad.getHeight();
+
+		byInterval = ad.isGated() && ad.getNumberOfGatedIntervals() > 1;
+		gates = byInterval ? ad.getNumberOfGatedIntervals() : ad.getNumberOfImages();
+		ventricleByGate = new int[gates][];
+
+	}
+
+	/**
+	 * Set the left ventricle ROI used for every gate without its own.
+	 *
+	 * @param bounds
+	 *            The bounding rectangle, which must lie within the frame.
+	 * @param mask
+	 *            One byte per pixel of the rectangle, row by row; non-zero
+	 *            pixels are inside. Null for the whole rectangle.
+	 */
+	public void setLeftVentricle(Rectangle bounds, byte[] mask) {
+		ventricle = ADACTimeActivity.getIndices("left ventricle", bounds, mask, width, height);
+	}
+
+	/**
+	 * Set the left ventricle ROI of one gate, such as separate end diastolic
+	 * and end systolic ROIs.
+	 *
+	 * @param gate
+	 *            Zero-based gate.
+	 * @param bounds
+	 *            The bounding rectangle, which must lie within the frame.
+	 * @param mask
+	 *            One byte per pixel of the rectangle, row by row; non-zero
+	 *            pixels are inside. Null for the whole rectangle.
+	 */
+	public void setLeftVentricle(int gate, Rectangle bounds, byte[] mask) {
+		ventricleByGate[gate] = ADACTimeActivity.getIndices("left ventricle", bounds, mask, width, height);
+	}
+
+	/**
+	 * Set the background ROI. Without one no background is subtracted.
+	 *
+	 * @param bounds
+	 *            The bounding rectangle, which must lie within the frame.
+	 * @param mask
+	 *            One byte per pixel of the rectangle, row by row; non-zero
+	 *            pixels are inside. Null for the whole rectangle.
+	 */
+	public void setBackground(Rectangle bounds, byte[] mask) {
+		background = ADACTimeActivity.getIndices("background", bounds, mask, width, height);
+	}
+
+	/**
+	 * Read the gated frames once and build the volume curve. The frames are
+	 * read from the channel or stream the header was read from.
+	 *
+	 * @throws IOException
+	 */
+	public void measure() throws IOException {
+
+		for (int g = 0; g < gates; g++) {
+			if (getVentricle(g) == null) {
+				throw new IllegalStateException("No left ventricle ROI for gate " + g);
+			}
+		}
+
+		ventricleCounts = new double[gates];
+		backgroundCounts = new double[gates];
+
+		ADACFrameIterator frames = ADACFrameIterator.open(ad);
+
+		try {
+
+			while (frames.hasNext()) {
+
+				ADACFrame frame = frames.next();
+
+				// The first frame (position 0) of each interval, or every frame
+				// of a dynamic; later positions of a GP interval are ignored
+				int gate = byInterval ? frame.getInterval() : frame.getIndex();
+				if (byInterval && frame.getPosition() != 0 || gate >= gates) {
+					continue;
+				}
+
+				float[] values = frame.getPixels();
+				ventricleCounts[gate] = ADACTimeActivity.sum(values, getVentricle(gate));
+				if (background != null) {
+					backgroundCounts[gate] = ADACTimeActivity.sum(values, background);
+				}
+
+			}
+
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		curve = new double[gates];
+		for (int g = 0; g < gates; g++) {
+
+			curve[g] = ventricleCounts[g];
+			if (background != null && background.length > 0) {
+				curve[g] -= backgroundCounts[g] / background.length * getVentricle(g).length;
+			}
+
+		}
+
+	}
+
+	private int[] getVentricle(int gate) {
+		return ventricleByGate[gate] != null ? ventricleByGate[gate] : ventricle;
+	}
+
+	/**
+	 * Get the number of gates in the cardiac cycle.
+	 *
+	 * @return
+	 */
+	public int getGateCount() {
+		return gates;
+	}
+
+	/**
+	 * Get the background corrected left ventricle counts of each gate, which
+	 * are proportional to ventricular volume.
+	 *
+	 * @return
+	 */
+	public double[] getVolumeCurve() {
+		return checkMeasured().clone();
+	}
+
+	/**
+	 * Get the time of the start of each gate in milliseconds from the R wave,
+	 * from {@link ADACDictionary#R_R_INTERVAL_TIME}. All zero if the header
+	 * does not give the R-R interval.
+	 *
+	 * @return
+	 */
+	public double[] getGateTimes() {
+
+		double gateTime = (double) getRRInterval() / gates;
+		double[] times = new double[gates];
+		for (int g = 0; g < gates; g++) {
+			times[g] = g * gateTime;
+		}
+		return times;
+
+	}
+
+	/**
+	 * Get the mean R-R interval in milliseconds, as stored in the header.
+	 *
+	 * @return
+	 */
+	public short getRRInterval() {
+		return ad.getShort(ADACDictionary.R_R_INTERVAL_TIME);
+	}
+
+	/**
+	 * Get the gate with the most counts in the left ventricle.
+	 *
+	 * @return Zero-based gate.
+	 */
+	public int getEndDiastolicGate() {
+
+		double[] c = checkMeasured();
+		int ed = 0;
+		for (int g = 1; g < gates; g++) {
+			if (c[g] > c[ed]) {
+				ed = g;
+			}
+		}
+		return ed;
+
+	}
+
+	/**
+	 * Get the gate with the fewest counts in the left ventricle.
+	 *
+	 * @return Zero-based gate.
+	 */
+	public int getEndSystolicGate() {
+
+		double[] c = checkMeasured();
+		int es = 0;
+		for (int g = 1; g < gates; g++) {
+			if (c[g] < c[es]) {
+				es = g;
+			}
+		}
+		return es;
+
+	}
+
+	/**
+	 * Get the left ventricular ejection fraction.
+	 *
+	 * @return The ejection fraction in percent, or NaN if the end diastolic
+	 *         counts are not positive.
+	 */
+	public double getEjectionFraction() {
+
+		double ed = checkMeasured()[getEndDiastolicGate()];
+		double es = curve[getEndSystolicGate()];
+		return ed > 0 ? 100 * (ed - es) / ed : Double.NaN;
+
+	}
+
+	/**
+	 * Get the ejection fraction stored in the header, in percent. Values
+	 * stored as a fraction of one are scaled up.
+	 *
+	 * @return The ejection fraction in percent, or NaN if none is stored.
+	 */
+	public double getStoredEjectionFraction() {
+
+		ADACHeader header = ad.getHeader();
+		if (!header.hasKey(ADACDictionary.EJECTION_FRACTION)) {
+			return Double.NaN;
+		}
+
+		double ef = header.getFloat(ADACDictionary.EJECTION_FRACTION);
+		if (ef <= 0) {
+			return Double.NaN;
+		}
+		return ef <= 1 ? 100 * ef : ef;
+
+	}
+
+	/**
+	 * Get the end diastolic gate stored in the header, converted from the
+	 * one-based frame number the workstation records.
+	 *
+	 * @return Zero-based gate, or -1 if none is stored.
+	 */
+	public int getStoredEndDiastolicGate() {
+		return getStoredGate(ADACDictionary.END_DIASTOLIC_FRAME);
+	}
+
+	/**
+	 * Get the end systolic gate stored in the header, converted from the
+	 * one-based frame number the workstation records.
+	 *
+	 * @return Zero-based gate, or -1 if none is stored.
+	 */
+	public int getStoredEndSystolicGate() {
+		return getStoredGate(ADACDictionary.END_SYSTOLIC_FRAME);
+	}
+
+	private int getStoredGate(short key) {
+
+		ADACHeader header = ad.getHeader();
+		if (!header.hasKey(key)) {
+			return -1;
+		}
+
+		int frame = header.getShort(key);
+		return frame >= 1 && frame <= gates ? frame - 1 : -1;
+
+	}
+
+	/**
+	 * Get the percentage of cardiac cycles accepted during acquisition, from
+	 * {@link ADACDictionary#CYCLES_ACCEPTED_PC}.
+	 *
+	 * @return The percentage, or -1 if none is stored.
+	 */
+	public int getCyclesAcceptedPercent() {
+		return getPercent(ADACDictionary.CYCLES_ACCEPTED_PC);
+	}
+
+	/**
+	 * Get the percentage of cardiac cycles rejected during acquisition, such
+	 * as for arrhythmia, from {@link ADACDictionary#CYCLES_REJECTED_PC}. A high
+	 * value marks a poorly gated study.
+	 *
+	 * @return The percentage, or -1 if none is stored.
+	 */
+	public int getCyclesRejectedPercent() {
+		return getPercent(ADACDictionary.CYCLES_REJECTED_PC);
+	}
+
+	private int getPercent(short key) {
+
+		ADACHeader header = ad.getHeader();
+		return header.hasKey(key) ? header.getShort(key) : -1;
+
+	}
+
+	/**
+	 * Check whether the measured ejection fraction agrees with the stored one
+	 * to within {@link #DEFAULT_TOLERANCE} percentage points, and the end
+	 * diastolic and end systolic gates with the stored frames to within
+	 * {@link #DEFAULT_GATE_TOLERANCE} gates. Values not stored are not
+	 * checked.
+	 *
+	 * @return
+	 */
+	public boolean isConsistent() {
+		return isConsistent(DEFAULT_TOLERANCE, DEFAULT_GATE_TOLERANCE);
+	}
+
+	/**
+	 * Check whether the measured ejection fraction agrees with the stored one.
+	 * True when no ejection fraction is stored.
+	 *
+	 * @param tolerance
+	 *            Largest difference accepted, in percentage points.
+	 * @return
+	 */
+	public boolean isConsistent(double tolerance) {
+
+		double stored = getStoredEjectionFraction();
+		return Double.isNaN(stored) || Math.abs(getEjectionFraction() - stored) <= tolerance;
+
+	}
+
+	/**
+	 * Check whether the measured ejection fraction and end diastolic and end
+	 * systolic gates agree with those stored. Values not stored are not
+	 * checked.
+	 *
+	 * @param tolerance
+	 *            Largest ejection fraction difference accepted, in percentage
+	 *            points.
+	 * @param gateTolerance
+	 *            Largest gate difference accepted, counted around the cycle.
+	 * @return
+	 */
+	public boolean isConsistent(double tolerance, int gateTolerance) {
+
+		return isConsistent(tolerance)
+				&& matchesGate(getEndDiastolicGate(), getStoredEndDiastolicGate(), gateTolerance)
+				&& matchesGate(getEndSystolicGate(), getStoredEndSystolicGate(), gateTolerance);
+
+	}
+
+	private boolean matchesGate(int measured, int stored, int tolerance) {
+
+		if (stored < 0) {
+			return true;
+		}
+
+		// The cycle wraps, so the last gate is next to the first
+		int d = Math.abs(measured - stored) % gates;
+		return Math.min(d, gates - d) <= tolerance;
+
+	}
+
+	private double[] checkMeasured() {
+
+		if (curve == null) {
+			throw new IllegalStateException("The study has not been measured");
+		}
+		return curve;
+
+	}
+
+	@Override
+	public String toString() {
+
+		if (curve == null) {
+			return "ADACEjectionFraction[gates=" + gates + "]";
+		}
+
+		return "ADACEjectionFraction[gates=" + gates + ", ED=" + getEndDiastolicGate() + " (stored "
+				+ getStoredEndDiastolicGate() + "), ES=" + getEndSystolicGate() + " (stored "
+				+ getStoredEndSystolicGate() + "), EF=" + getEjectionFraction() + " (stored "
+				+ getStoredEjectionFraction() + "), cycles accepted=" + getCyclesAcceptedPercent() + "%, rejected="
+				+ getCyclesRejectedPercent() + "%]";
+
+	}
+
+}
@@ -0,0 +1,369 @@
+package ADAC;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Write ADAC objects. Values are set by dictionary key (see
+ * {@link ADACDictionary}) and checked against the dictionary type and length.
+ * The encoder lays out the key table, label area and Extras block, the
+ * "adac01" sub-headers that gated objects carry (128 bytes per interval for a
+ * gated reconstruction, 1664 bytes per interval for gated SPECT) and then the
+ * pixel data, so that {@link ADACDecoder#getImageOffset()} finds it.
+ *
+ * Pixel data is written a frame at a time, so objects of any size can be made
+ * without holding them in memory.
+ *
+ * @author neil
+ *
+ */
+public class ADACEncoder {
+
+	/**
+	 * Size of the sub-header written for each interval of a gated
+	 * reconstruction.
+	 */
+	public static final int RECON_SUB_HEADER = 128;
+	/**
+	 * Size of the sub-header written for each interval of a gated SPECT
+	 * acquisition.
+	 */
+	public static final int SPECT_SUB_HEADER = 1664;
+
+	private static final byte[] PREAMBLE = "adac01".getBytes(StandardCharsets.ISO_8859_1);
+	private static final int MAX_KEYS = (ADACDictionary.LABEL_OFFSET - ADACHeader.KEY_TABLE_OFFSET)
+			/ ADACHeader.KEY_LENGTH;
+
+	private static final ADACLog QUIET = new ADACConsoleLog(false);
+
+	// Encoded values by key number, in the order they were first set
+	private final byte[][] values = new byte[ADACDictionary.NUM_KEYS + 1][];
+	private final short[] order = new short[ADACDictionary.NUM_KEYS];
+	private int keys = 0;
+
+	private final Map<String, String> extras = new LinkedHashMap<String, String>();
+
+	/**
+	 * Fills frames of pixel data for {@link ADACEncoder#write}.
+	 */
+	public interface FrameWriter {
+
+		/**
+		 * Put the big-endian pixel data of a frame into the buffer.
+		 *
+		 * @param index
+		 *            Zero-based frame index.
+		 * @param frame
+		 *            Buffer of {@link ADACDecoder#getFrameSize()} bytes,
+		 *            positioned at zero.
+		 */
+		public void fill(int index, ByteBuffer frame);
+
+	}
+
+	public static void main(String[] args) {
+
+		if (args.length < 4) {
+			System.err.println("Usage: ADACEncoder <file> <matrix> <frames> <bitDepth> [intervals [slices]]");
+			System.exit(1);
+		}
+
+		int matrix = Integer.parseInt(args[1]);
+		ADACEncoder encoder = new ADACEncoder();
+		encoder.setString(ADACDictionary.PATIENT_NAME, "SYNTHETIC");
+		encoder.setString(ADACDictionary.PATIENT_ID, "SYNTH001");
+		encoder.setShort(ADACDictionary.X_DIMENSIONS, (short) matrix);
+		encoder.setShort(ADACDictionary.Y_DIMENSIONS, (short) matrix);
+		encoder.setShort(ADACDictionary.Z_DIMENSIONS, Short.parseShort(args[2]));
+		encoder.setShort(ADACDictionary.PIXEL_BIT_DEPTH, Short.parseShort(args[3]));
+		encoder.setFloat(ADACDictionary.ZOOM, 1.0f);
+
+		if (args.length > 4) {
+			encoder.setString(ADACDictionary.DATA_TYPE, "GE");
+			encoder.setShort(ADACDictionary.NUMBER_OF_IMAGE_SETS, Short.parseShort(args[4]));
+		}
+		if (args.length > 5) {
+			encoder.setShort(ADACDictionary.RECONSTRUCTED_SLICES, Short.parseShort(args[5]));
+		}
+
+		try {
+			encoder.write(new File(args[0]), null);
+		} catch (IOException e) {
+			System.err.println("ADACEncoder: " + e.getMessage());
+			System.exit(1);
+		}
+
+	}
+
+	/**
+	 * Set a byte (string) value. The string is written as ISO-8859-1, as the
+	 * decoder reads it, and truncated or null-padded to the dictionary length.
+	 *
+	 * @param dictionaryKey
+	 * @param value
+	 */
+	public void setString(short dictionaryKey, String value) {
+
+		checkType(dictionaryKey, ADACDictionary.BYTE);
+
+		byte[] bytes = new byte[ADACDictionary.valLength[dictionaryKey]];
+		byte[] string = value.getBytes(StandardCharsets.ISO_8859_1);
+		System.arraycopy(string, 0, bytes, 0, Math.min(string.length, bytes.length));
+		put(dictionaryKey, bytes);
+
+	}
+
+	/**
+	 * Set a short integer value.
+	 *
+	 * @param dictionaryKey
+	 * @param value
+	 */
+	public void setShort(short dictionaryKey, short value) {
+
+		checkType(dictionaryKey, ADACDictionary.SHORT);
+		put(dictionaryKey, ByteBuffer.allocate(2).putShort(value).array());
+
+	}
+
+	/**
+	 * Set an integer value.
+	 *
+	 * @param dictionaryKey
+	 * @param value
+	 */
+	public void setInteger(short dictionaryKey, int value) {
+
+		checkType(dictionaryKey, ADACDictionary.INT);
+		put(dictionaryKey, ByteBuffer.allocate(4).putInt(value).array());
+
+	}
+
+	/**
+	 * Set a floating point value.
+	 *
+	 * @param dictionaryKey
+	 * @param value
+	 */
+	public void setFloat(short dictionaryKey, float value) {
+
+		checkType(dictionaryKey, ADACDictionary.FLOAT);
+		put(dictionaryKey, ByteBuffer.allocate(4).putFloat(value).array());
+
+	}
+
+	/**
+	 * Set a Program Specific ("extras") item, such as
+	 * {@link ExtrasKvp#STUID_KEY}.
+	 *
+	 * @param key
+	 *            Four character key.
+	 * @param value
+	 */
+	public void setExtra(String key, String value) {
+
+		if (key.length() != 4) {
+			throw new IllegalArgumentException("Extras keys have four characters: " + key);
+		}
+
+		extras.put(key, value);
+
+		// Each item is the key, a separator byte, the value and a null
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> entry : extras.entrySet()) {
+			sb.append(entry.getKey());
+			sb.append('\u0001');
+			sb.append(entry.getValue());
+			sb.append('\u0000');
+		}
+
+		byte[] block = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+		if (block.length > ExtrasKvp.LENGTH) {
+			extras.remove(key);
+			throw new IllegalArgumentException("Extras block would exceed " + ExtrasKvp.LENGTH + " bytes");
+		}
+
+		byte[] bytes = new byte[ExtrasKvp.LENGTH];
+		System.arraycopy(block, 0, bytes, 0, block.length);
+		put(ADACDictionary.PROGRAM_SPECIFIC, bytes);
+
+	}
+
+	/**
+	 * Encode the header, followed by any gated sub-headers.
+	 *
+	 * @return {@link ADACDecoder#getImageOffset()} bytes.
+	 * @throws IllegalStateException
+	 *             if the values do not fit in the label area.
+	 */
+	public byte[] encodeHeader() {
+
+		byte[] header = new byte[ADACDictionary.IM_OFFSET];
+		ByteBuffer buf = ByteBuffer.wrap(header);
+
+		// Preamble, number of labels, number of sub-headers and an unused byte
+		buf.put(PREAMBLE);
+		buf.putShort((short) keys);
+		buf.put((byte) 0);
+		buf.put((byte) 0);
+
+		int valuePos = ADACDictionary.LABEL_OFFSET;
+
+		for (int i = 0; i < keys; i++) {
+
+			short keyNum = order[i];
+			byte[] value = values[keyNum];
+
+			if (valuePos + value.length > ADACDictionary.IM_OFFSET) {
+				throw new IllegalStateException("Values overflow the ADAC label area");
+			}
+
+			// Key number, data type, unused byte and offset to the value
+			buf.putShort(keyNum);
+			buf.put((byte) ADACDictionary.type[keyNum]);
+			buf.put((byte) 0);
+			buf.putShort((short) valuePos);
+
+			System.arraycopy(value, 0, header, valuePos, value.length);
+			valuePos += value.length;
+
+		}
+
+		// Let the decoder work out where the pixel data starts
+		ADACDecoder ad = new ADACDecoder(new ADACHeader(header), QUIET);
+		int imageOffset = ad.getImageOffset();
+
+		byte[] full = new byte[imageOffset];
+		System.arraycopy(header, 0, full, 0, header.length);
+
+		if (ad.isGated()) {
+
+			int subHeader = ad.isReconstruction() ? RECON_SUB_HEADER : SPECT_SUB_HEADER;
+			for (int i = 0; i < ad.getNumberOfGatedIntervals(); i++) {
+				System.arraycopy(PREAMBLE, 0, full, ADACDictionary.IM_OFFSET + i * subHeader, PREAMBLE.length);
+			}
+
+		}
+
+		return full;
+
+	}
+
+	/**
+	 * Encode a complete object in memory.
+	 *
+	 * @param frames
+	 *            Fills each frame of pixel data, or null to leave zeros.
+	 * @return
+	 */
+	public byte[] encode(FrameWriter frames) {
+
+		byte[] header = encodeHeader();
+		ADACDecoder ad = new ADACDecoder(new ADACHeader(header), QUIET);
+
+		long length = header.length + (long) ad.getNumberOfImages() * ad.getFrameSize();
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Object too large to encode in memory; write it to a file");
+		}
+
+		byte[] object = new byte[(int) length];
+		System.arraycopy(header, 0, object, 0, header.length);
+
+		if (frames != null) {
+
+			for (int i = 0; i < ad.getNumberOfImages(); i++) {
+				ByteBuffer frame = ByteBuffer.wrap(object, header.length + i * ad.getFrameSize(), ad.getFrameSize())
+						.slice();
+				frames.fill(i, frame);
+			}
+
+		}
+
+		return object;
+
+	}
+
+	/**
+	 * Write a complete object.
+	 *
+	 * @param file
+	 * @param frames
+	 *            Fills each frame of pixel data, or null to write zeros.
+	 * @return The decoder for the header written.
+	 * @throws IOException
+	 */
+	public ADACDecoder write(File file, FrameWriter frames) throws IOException {
+
+		byte[] header = encodeHeader();
+		ADACDecoder ad = new ADACDecoder(new ADACHeader(header), QUIET);
+
+		FileOutputStream out = new FileOutputStream(file);
+
+		try {
+
+			FileChannel channel = out.getChannel();
+			writeFully(channel, ByteBuffer.wrap(header));
+
+			// One frame buffer is reused for the whole object
+			ByteBuffer frame = ByteBuffer.allocate(ad.getFrameSize());
+			int count = ad.getNumberOfImages();
+
+			for (int i = 0; i < count; i++) {
+
+				frame.clear();
+				if (frames != null) {
+					frames.fill(i, frame);
+				}
+				frame.clear();
+				writeFully(channel, frame);
+
+			}
+
+		} finally {
+			out.close();
+		}
+
+		return ad;
+
+	}
+
+	private void checkType(short dictionaryKey, int type) {
+
+		if (dictionaryKey <= 0 || dictionaryKey > ADACDictionary.NUM_KEYS
+				|| ADACDictionary.type[dictionaryKey] != type) {
+			throw new IllegalArgumentException(
+					"Key " + dictionaryKey + " is not of dictionary type " + type);
+		}
+
+	}
+
+	private void put(short dictionaryKey, byte[] value) {
+
+		if (values[dictionaryKey] == null) {
+
+			if (keys == MAX_KEYS) {
+				throw new IllegalStateException("The ADAC key table holds at most " + MAX_KEYS + " keys");
+			}
+			order[keys++] = dictionaryKey;
+
+		}
+
+		values[dictionaryKey] = value;
+
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+
+	}
+
+}
@@ -0,0 +1,229 @@
+package ADAC;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ADACMetrics} that keeps counters and log2 histograms in memory and
+ * writes them to a tab separated text file. Recording is lock-free, so one
+ * instance can be shared by every decoding thread.
+ *
+ * Start ImageJ, or any of the command line tools, with
+ * <code>-Dadac.metrics=/path/to/file</code> to record every object opened and
+ * write the file on exit.
+ *
+ * @author neil
+ *
+ */
+public class ADACFileMetrics implements ADACMetrics, Closeable {
+
+	/**
+	 * System property naming the file to write metrics to on exit.
+	 */
+	public static final String PROPERTY = "adac.metrics";
+
+	// Bucket n counts values from 2^(n-1) up to 2^n - 1; bucket 0 counts zero.
+	// Values are never negative, so 64 buckets cover them all.
+	private static final int BUCKETS = 64;
+
+	private final File file;
+	private final long created = System.currentTimeMillis();
+
+	private final Counter[] stages = new Counter[Stage.values().length];
+	private final Counter files = new Counter();
+
+	/**
+	 * Create metrics that are written to a file by {@link #write()}.
+	 *
+	 * @param file
+	 */
+	public ADACFileMetrics(File file) {
+
+		this.file = file;
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new Counter();
+		}
+
+	}
+
+	/**
+	 * Create metrics for a file, make them the decoder's metrics and write
+	 * them when the JVM exits.
+	 *
+	 * @param file
+	 * @return
+	 */
+	public static ADACFileMetrics install(File file) {
+
+		final ADACFileMetrics metrics = new ADACFileMetrics(file);
+		ADACDecoder.setMetrics(metrics);
+
+		Runtime.getRuntime().addShutdownHook(new Thread("ADAC metrics") {
+			public void run() {
+				try {
+					metrics.write();
+				} catch (IOException e) {
+					System.err.println("ADACFileMetrics: unable to write " + metrics.file + ": " + e.getMessage());
+				}
+			}
+		});
+
+		return metrics;
+
+	}
+
+	public long start() {
+		return System.nanoTime();
+	}
+
+	public void stop(Stage stage, long start, long bytes) {
+		stages[stage.ordinal()].add(System.nanoTime() - start, bytes);
+	}
+
+	public void file(String name, long bytes) {
+		files.add(bytes, bytes);
+	}
+
+	/**
+	 * Get the number of times a stage has been recorded.
+	 *
+	 * @param stage
+	 * @return
+	 */
+	public long getCount(Stage stage) {
+		return stages[stage.ordinal()].count.sum();
+	}
+
+	/**
+	 * Get the total time spent in a stage in nanoseconds.
+	 *
+	 * @param stage
+	 * @return
+	 */
+	public long getNanos(Stage stage) {
+		return stages[stage.ordinal()].total.sum();
+	}
+
+	/**
+	 * Get the total number of bytes read by a stage.
+	 *
+	 * @param stage
+	 * @return
+	 */
+	public long getBytes(Stage stage) {
+		return stages[stage.ordinal()].bytes.sum();
+	}
+
+	/**
+	 * Get the number of objects recorded by {@link #file(String, long)}.
+	 *
+	 * @return
+	 */
+	public long getFileCount() {
+		return files.count.sum();
+	}
+
+	/**
+	 * Write the current counters and histograms, replacing the file.
+	 *
+	 * @throws IOException
+	 */
+	public void write() throws IOException {
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("adac", ".metrics", parent);
+
+		PrintWriter out = new PrintWriter(temp, "UTF-8");
+		try {
+
+			out.println("# ADAC metrics from " + new Date(created) + " to " + new Date());
+
+			out.println();
+			out.println("stage\tcount\ttotal_ms\tmean_us\tmax_us\tbytes");
+			for (Stage stage : Stage.values()) {
+				Counter c = stages[stage.ordinal()];
+				long count = c.count.sum();
+				out.printf("%s\t%d\t%.3f\t%.1f\t%.1f\t%d%n", stage, count, c.total.sum() / 1e6,
+						count > 0 ? c.total.sum() / 1e3 / count : 0.0, c.max.get() / 1e3, c.bytes.sum());
+			}
+			out.printf("FILES\t%d\t\t\t\t%d%n", files.count.sum(), files.bytes.sum());
+
+			// Only the buckets that have been used
+			out.println();
+			out.println("histogram\tbelow\tcount");
+			for (Stage stage : Stage.values()) {
+				printHistogram(out, stage + "_ns", stages[stage.ordinal()].histogram);
+			}
+			printHistogram(out, "FILE_BYTES", files.histogram);
+
+		} finally {
+			out.close();
+		}
+
+		if (out.checkError()) {
+			temp.delete();
+			throw new IOException("Unable to write " + temp);
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+	}
+
+	/**
+	 * Write the metrics.
+	 */
+	public void close() throws IOException {
+		write();
+	}
+
+	private static void printHistogram(PrintWriter out, String name, AtomicLongArray histogram) {
+
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = histogram.get(i);
+			if (count > 0) {
+				out.printf("%s\t%d\t%d%n", name, i < 63 ? 1L << i : Long.MAX_VALUE, count);
+			}
+		}
+
+	}
+
+	/**
+	 * Count, total, maximum and log2 histogram of one measure.
+	 */
+	private static class Counter {
+
+		final LongAdder count = new LongAdder();
+		final LongAdder total = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final AtomicLong max = new AtomicLong();
+		final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		void add(long value, long byteCount) {
+
+			if (value < 0) {
+				value = 0;
+			}
+
+			count.increment();
+			total.add(value);
+			bytes.add(byteCount);
+			histogram.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+
+			long m = max.get();
+			while (value > m && !max.compareAndSet(m, value)) {
+				m = max.get();
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,113 @@
+package ADAC;
+
+/**
+ * One frame of an ADAC object as handed out by {@link ADACFrameIterator}. The
+ * same object, and the same pixel array, is reused for every frame of a
+ * study, so copy anything that must outlive the next call to
+ * {@link ADACFrameIterator#next()}.
+ *
+ * @author neil
+ *
+ */
+public class ADACFrame {
+
+	private final int width;
+	private final int height;
+	private final int framesPerInterval;
+	private final float[] pixels;
+
+	private int index = -1;
+
+	/**
+	 * Create a frame holder for an object.
+	 *
+	 * @param ad
+	 */
+	public ADACFrame(ADACDecoder ad) {
+
+		width = ad.getWidth();
+		height = ad.getHeight();
+		framesPerInterval = Math.max(1, ad.getFramesPerInterval());
+		pixels = new float[width * height];
+
+	}
+
+	/**
+	 * Get the zero-based index of the frame in the file.
+	 *
+	 * @return
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Get the zero-based gated interval of the frame. Always zero for data
+	 * that is not gated.
+	 *
+	 * @return
+	 */
+	public int getInterval() {
+		return index / framesPerInterval;
+	}
+
+	/**
+	 * Get the zero-based position of the frame within its interval: the slice
+	 * of a reconstruction, the projection of a SPECT acquisition or the frame
+	 * of a dynamic.
+	 *
+	 * @return
+	 */
+	public int getPosition() {
+		return index % framesPerInterval;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Get the pixel values of the frame, row by row. The array is reused for
+	 * the next frame.
+	 *
+	 * @return
+	 */
+	public float[] getPixels() {
+		return pixels;
+	}
+
+	/**
+	 * Get a pixel value.
+	 *
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public float getPixel(int x, int y) {
+		return pixels[y * width + x];
+	}
+
+	/**
+	 * Get the total counts in the frame.
+	 *
+	 * @return
+	 */
+	public double getSum() {
+
+		double sum = 0;
+		for (int i = 0; i < pixels.length; i++) {
+			sum += pixels[i];
+		}
+		return sum;
+
+	}
+
+	void setIndex(int index) {
+		this.index = index;
+	}
+
+}
@@ -0,0 +1,146 @@
+package ADAC;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Convert big-endian ADAC frames into ImageJ pixel arrays. Conversion follows
+ * ImageJ's own rules for the file types in the importer's bit depth map: 8 bit
+ * data is unsigned, 16 bit data is signed and offset by 32768 (to be used with
+ * a signed 16 bit calibration) and 32 bit data is floating point.
+ *
+ * @author neil
+ *
+ */
+public class ADACFrameDecoder {
+
+	private ADACFrameDecoder() {
+	}
+
+	/**
+	 * Decode a frame into a new ImageJ pixel array.
+	 *
+	 * @param frame
+	 *            The frame data, positioned at the first pixel.
+	 * @param pixelCount
+	 *            The number of pixels in the frame.
+	 * @param bitDepth
+	 *            The ADAC bit depth (8, 16 or 32). Anything else is read as
+	 *            16 bit.
+	 * @return a byte[], short[] or float[]
+	 */
+	public static Object getPixels(ByteBuffer frame, int pixelCount, short bitDepth) {
+
+		ByteBuffer in = frame.duplicate().order(ByteOrder.BIG_ENDIAN);
+
+		switch (bitDepth) {
+
+		case 8:
+
+			byte[] bytes = new byte[pixelCount];
+			in.get(bytes);
+			return bytes;
+
+		case 32:
+
+			float[] floats = new float[pixelCount];
+			in.asFloatBuffer().get(floats);
+			return floats;
+
+		default:
+
+			short[] shorts = new short[pixelCount];
+			in.asShortBuffer().get(shorts);
+
+			// Same as adding 32768 to a signed value
+			for (int i = 0; i < shorts.length; i++) {
+				shorts[i] ^= 0x8000;
+			}
+			return shorts;
+
+		}
+
+	}
+
+	/**
+	 * Decode a frame into an existing array as true pixel values: 8 bit data
+	 * unsigned, 16 bit data signed (without ImageJ's 32768 offset) and 32 bit
+	 * data as stored.
+	 *
+	 * @param frame
+	 *            The frame data, positioned at the first pixel.
+	 * @param bitDepth
+	 *            The ADAC bit depth (8, 16 or 32).
+	 * @param dest
+	 *            Array of at least the number of pixels in the frame.
+	 * @param pixelCount
+	 *            The number of pixels in the frame.
+	 */
+	public static void getValues(ByteBuffer frame, short bitDepth, float[] dest, int pixelCount) {
+
+		ByteBuffer in = frame.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int pos = in.position();
+
+		switch (bitDepth) {
+
+		case 8:
+			for (int i = 0; i < pixelCount; i++) {
+				dest[i] = in.get(pos + i) & 0xff;
+			}
+			break;
+
+		case 32:
+			in.asFloatBuffer().get(dest, 0, pixelCount);
+			break;
+
+		default:
+			for (int i = 0; i < pixelCount; i++) {
+				dest[i] = in.getShort(pos + 2 * i);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Decode a frame into a new {@link ImageProcessor}.
+	 *
+	 * @param frame
+	 *            The frame data, positioned at the first pixel.
+	 * @param width
+	 * @param height
+	 * @param bitDepth
+	 *            The ADAC bit depth (8, 16 or 32).
+	 * @return
+	 */
+	public static ImageProcessor getProcessor(ByteBuffer frame, int width, int height, short bitDepth) {
+		return makeProcessor(width, height, getPixels(frame, width * height, bitDepth));
+	}
+
+	/**
+	 * Wrap an ImageJ pixel array in the matching {@link ImageProcessor}.
+	 *
+	 * @param width
+	 * @param height
+	 * @param pixels
+	 *            a byte[], short[] or float[]
+	 * @return
+	 */
+	public static ImageProcessor makeProcessor(int width, int height, Object pixels) {
+
+		if (pixels instanceof byte[]) {
+			return new ByteProcessor(width, height, (byte[]) pixels, null);
+		} else if (pixels instanceof float[]) {
+			return new FloatProcessor(width, height, (float[]) pixels, null);
+		} else {
+			return new ShortProcessor(width, height, (short[]) pixels, null);
+		}
+
+	}
+
+}
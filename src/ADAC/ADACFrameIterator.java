@@ -0,0 +1,217 @@
+package ADAC;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+/**
+ * Streams the frames of an ADAC object one at a time. A single read buffer and
+ * a single {@link ADACFrame} are reused throughout, so memory use does not
+ * depend on the length of the study. The number of frames, and their gated
+ * interval and position, come from {@link ADACDecoder#getZDim()},
+ * {@link ADACDecoder#getNumberOfSlices()} and
+ * {@link ADACDecoder#getNumberOfGatedIntervals()}.
+ *
+ * Read errors are thrown from {@link #next()} as {@link UncheckedIOException}.
+ *
+ * @author neil
+ *
+ */
+public class ADACFrameIterator implements Iterator<ADACFrame> {
+
+	private final ADACDecoder ad;
+	private final ADACFrame frame;
+	private final ByteBuffer buffer;
+	private final int count;
+	private final int pixelCount;
+
+	// Positional reads from a file, sequential reads from anything else, or
+	// frames that are already in memory
+	private final FileChannel fileChannel;
+	private final ReadableByteChannel channel;
+	private final ADACFrameSource source;
+	private long position;
+
+	private int next = 0;
+
+	/**
+	 * Iterate over the frames of an object using positional reads, starting
+	 * at {@link ADACDecoder#getImageOffset()}. The channel position is not
+	 * changed.
+	 *
+	 * @param ad
+	 * @param fileChannel
+	 *            Channel open on the ADAC object.
+	 */
+	public ADACFrameIterator(ADACDecoder ad, FileChannel fileChannel) {
+
+		this(ad, fileChannel, null, null);
+		position = ad.getImageOffset();
+
+	}
+
+	/**
+	 * Iterate over the frames of an object from a stream positioned at
+	 * {@link ADACDecoder#getImageOffset()}, such as
+	 * {@link ADACDecoder#getImageStream()}.
+	 *
+	 * @param ad
+	 * @param in
+	 */
+	public ADACFrameIterator(ADACDecoder ad, InputStream in) {
+		this(ad, Channels.newChannel(in));
+	}
+
+	/**
+	 * Iterate over the frames of an object from a channel positioned at
+	 * {@link ADACDecoder#getImageOffset()}.
+	 *
+	 * @param ad
+	 * @param channel
+	 */
+	public ADACFrameIterator(ADACDecoder ad, ReadableByteChannel channel) {
+		this(ad, null, channel, null);
+	}
+
+	/**
+	 * Iterate over the frames of a mapped or off-heap object, such as an
+	 * {@link ADACPixelStore}. Nothing is copied before decoding.
+	 *
+	 * @param ad
+	 * @param source
+	 */
+	public ADACFrameIterator(ADACDecoder ad, ADACFrameSource source) {
+		this(ad, null, null, source);
+	}
+
+	private ADACFrameIterator(ADACDecoder ad, FileChannel fileChannel, ReadableByteChannel channel,
+			ADACFrameSource source) {
+
+		this.ad = ad;
+		this.fileChannel = fileChannel;
+		this.channel = channel;
+		this.source = source;
+
+		frame = new ADACFrame(ad);
+		buffer = source == null ? ByteBuffer.allocate(ad.getFrameSize()) : null;
+		pixelCount = ad.getWidth() * ad.getHeight();
+
+		if (source != null) {
+			count = source.getFrameCount();
+		} else {
+			count = ad.getFrameSize() > 0 ? ad.getNumberOfImages() : 0;
+		}
+
+	}
+
+	/**
+	 * Iterate over the frames of an object from the channel or stream its
+	 * header was read from.
+	 *
+	 * @param ad
+	 * @return
+	 * @throws IOException
+	 */
+	public static ADACFrameIterator open(ADACDecoder ad) throws IOException {
+
+		if (ad.getChannel() != null) {
+			return new ADACFrameIterator(ad, ad.getChannel());
+		}
+
+		InputStream in = ad.getImageStream();
+		if (in == null) {
+			throw new IOException("The decoder has no pixel data source");
+		}
+		return new ADACFrameIterator(ad, in);
+
+	}
+
+	public boolean hasNext() {
+		return next < count;
+	}
+
+	/**
+	 * Read and decode the next frame into the shared {@link ADACFrame}.
+	 */
+	public ADACFrame next() {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		ByteBuffer data;
+		if (source != null) {
+
+			data = source.getFrame(next);
+
+		} else {
+
+			try {
+				read();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			buffer.flip();
+			data = buffer;
+
+		}
+
+		ADACFrameDecoder.getValues(data, ad.getBitDepth(), frame.getPixels(), pixelCount);
+		frame.setIndex(next++);
+
+		return frame;
+
+	}
+
+	/**
+	 * Get the number of frames not yet read.
+	 *
+	 * @return
+	 */
+	public int remaining() {
+		return count - next;
+	}
+
+	/**
+	 * A sequential spliterator over the remaining frames. Frames share one
+	 * buffer, so it does not split.
+	 *
+	 * @return
+	 */
+	public Spliterator<ADACFrame> spliterator() {
+		return Spliterators.spliterator(this, remaining(),
+				Spliterator.ORDERED | Spliterator.SIZED | Spliterator.NONNULL);
+	}
+
+	private void read() throws IOException {
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		buffer.clear();
+
+		while (buffer.hasRemaining()) {
+
+			int n = fileChannel != null ? fileChannel.read(buffer, position) : channel.read(buffer);
+			if (n < 0) {
+				throw new EOFException("ADAC pixel data ends at frame " + next + " of " + count);
+			}
+			position += n;
+
+		}
+
+		metrics.stop(ADACMetrics.Stage.PIXEL_IO, start, buffer.position());
+
+	}
+
+}
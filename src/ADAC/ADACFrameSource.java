@@ -0,0 +1,61 @@
+package ADAC;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Random access to the raw, big-endian frames of an ADAC object, wherever
+ * they are held: mapped from the file ({@link ADACPixelSource}) or copied off
+ * the heap ({@link ADACPixelStore}).
+ *
+ * @author neil
+ *
+ */
+public interface ADACFrameSource {
+
+	/**
+	 * Get a frame of pixel data as a read-only, big-endian view positioned at
+	 * the first pixel. Each call returns a new view, so frames may be read from
+	 * several threads at once.
+	 *
+	 * @param index
+	 *            Zero-based frame index.
+	 * @return
+	 */
+	public ByteBuffer getFrame(int index);
+
+	/**
+	 * Get the bit depth of the pixel data.
+	 *
+	 * @return
+	 */
+	public short getBitDepth();
+
+	/**
+	 * Get the number of complete frames available.
+	 *
+	 * @return
+	 */
+	public int getFrameCount();
+
+	/**
+	 * Get the size of each frame in bytes.
+	 *
+	 * @return
+	 */
+	public int getFrameSize();
+
+	/**
+	 * Get the frame height in pixel units.
+	 *
+	 * @return
+	 */
+	public int getHeight();
+
+	/**
+	 * Get the frame width in pixel units.
+	 *
+	 * @return
+	 */
+	public int getWidth();
+
+}
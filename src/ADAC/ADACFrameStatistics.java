@@ -0,0 +1,476 @@
+package ADAC;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-frame total counts, minimum, maximum and (optionally) histograms of an
+ * ADAC object, gathered in the same pass that reads the pixel data, so there
+ * is no need to build a stack and measure it afterwards.
+ *
+ * The results can be checked against the values the header claims for the
+ * set: {@link ADACDictionary#TOTAL_COUNTS_IN_FRAME},
+ * {@link ADACDictionary#MAX_VALUE_IN_SET} and
+ * {@link ADACDictionary#MIN_VALUE_IN_SET}, allowing for
+ * {@link ADACDictionary#SCALE_FACTOR}. A mismatch usually means the pixel data
+ * has been truncated, overwritten or paired with the wrong header.
+ *
+ * From the command line, to list the objects whose pixel data does not match
+ * their header:
+ *
+ * <pre>
+ * java -cp ADAC_Utils.jar ADAC.ADACFrameStatistics file ...
+ * </pre>
+ *
+ * @author neil
+ *
+ */
+public class ADACFrameStatistics {
+
+	// Header values are stored as floats
+	private static final double TOLERANCE = 1e-4;
+
+	private final ADACHeader header;
+	private final int frameCount;
+
+	private final double[] sums;
+	private final float[] mins;
+	private final float[] maxs;
+	private final boolean[] measured;
+
+	private int[][] histograms;
+	private int bins;
+	private float low;
+	private float high;
+
+	/**
+	 * Create empty statistics for the frames of an object.
+	 *
+	 * @param header
+	 */
+	public ADACFrameStatistics(ADACHeader header) {
+
+		this.header = header;
+		frameCount = header.getFrameSize() > 0 ? header.getNumberOfImages() : 0;
+
+		sums = new double[frameCount];
+		mins = new float[frameCount];
+		maxs = new float[frameCount];
+		measured = new boolean[frameCount];
+
+	}
+
+	/**
+	 * Read every frame of an object once and gather its statistics. The
+	 * frames are read from the channel or stream the header was read from. If
+	 * the pixel data ends early the frames read so far are kept.
+	 *
+	 * @param ad
+	 * @return
+	 * @throws IOException
+	 */
+	public static ADACFrameStatistics measure(ADACDecoder ad) throws IOException {
+		return measure(ad, 0, 0, 0);
+	}
+
+	/**
+	 * Read every frame of an object once and gather its statistics, with a
+	 * histogram of each frame.
+	 *
+	 * @param ad
+	 * @param bins
+	 *            Number of histogram bins.
+	 * @param low
+	 *            Lowest value of the first bin.
+	 * @param high
+	 *            Highest value of the last bin.
+	 * @return
+	 * @throws IOException
+	 */
+	public static ADACFrameStatistics measure(ADACDecoder ad, int bins, float low, float high) throws IOException {
+
+		ADACFrameStatistics stats = new ADACFrameStatistics(ad.getHeader());
+		if (bins > 0) {
+			stats.setHistogram(bins, low, high);
+		}
+
+		ADACFrameIterator frames = ADACFrameIterator.open(ad);
+		try {
+			while (frames.hasNext()) {
+				stats.add(frames.next());
+			}
+		} catch (UncheckedIOException e) {
+			// A truncated file is reported by check() as frames not read
+			if (!(e.getCause() instanceof EOFException)) {
+				throw e.getCause();
+			}
+		}
+
+		return stats;
+
+	}
+
+	/**
+	 * Gather a histogram of each frame added from now on. Values below the
+	 * range are counted in the first bin and values above it in the last.
+	 *
+	 * @param bins
+	 *            Number of histogram bins.
+	 * @param low
+	 *            Lowest value of the first bin.
+	 * @param high
+	 *            Highest value of the last bin.
+	 */
+	public synchronized void setHistogram(int bins, float low, float high) {
+
+		if (bins <= 0 || !(high > low)) {
+			throw new IllegalArgumentException("Histogram needs bins and a range: " + bins + ", " + low + ".." + high);
+		}
+
+		this.bins = bins;
+		this.low = low;
+		this.high = high;
+		histograms = new int[frameCount][];
+
+	}
+
+	/**
+	 * Add a frame. Frames may be added in any order, and different frames may
+	 * be added from different threads: the pixels are measured outside the
+	 * lock and only the results are stored under it.
+	 *
+	 * @param frame
+	 */
+	public void add(ADACFrame frame) {
+		add(frame.getIndex(), frame.getPixels(), frame.getWidth() * frame.getHeight());
+	}
+
+	/**
+	 * Add a frame of true pixel values, as given by
+	 * {@link ADACFrameDecoder#getValues(java.nio.ByteBuffer, short, float[], int)}.
+	 *
+	 * @param index
+	 *            Zero-based frame index, in file order.
+	 * @param values
+	 * @param pixelCount
+	 */
+	public void add(int index, float[] values, int pixelCount) {
+
+		// Four independent running sums and extremes, so that each
+		// iteration does not wait on the one before and the JIT can
+		// vectorise the loop
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		float min0 = Float.POSITIVE_INFINITY, min1 = min0, min2 = min0, min3 = min0;
+		float max0 = Float.NEGATIVE_INFINITY, max1 = max0, max2 = max0, max3 = max0;
+
+		int i = 0;
+		for (; i + 3 < pixelCount; i += 4) {
+
+			float v0 = values[i];
+			float v1 = values[i + 1];
+			float v2 = values[i + 2];
+			float v3 = values[i + 3];
+
+			s0 += v0;
+			s1 += v1;
+			s2 += v2;
+			s3 += v3;
+
+			min0 = Math.min(min0, v0);
+			min1 = Math.min(min1, v1);
+			min2 = Math.min(min2, v2);
+			min3 = Math.min(min3, v3);
+
+			max0 = Math.max(max0, v0);
+			max1 = Math.max(max1, v1);
+			max2 = Math.max(max2, v2);
+			max3 = Math.max(max3, v3);
+
+		}
+
+		for (; i < pixelCount; i++) {
+			s0 += values[i];
+			min0 = Math.min(min0, values[i]);
+			max0 = Math.max(max0, values[i]);
+		}
+
+		// The histogram settings may be changed from another thread
+		int[] histogram = null;
+		int binCount;
+		float from;
+		float to;
+
+		synchronized (this) {
+			binCount = histograms != null ? bins : 0;
+			from = low;
+			to = high;
+		}
+
+		if (binCount > 0) {
+
+			histogram = new int[binCount];
+			float scale = binCount / (to - from);
+			int last = binCount - 1;
+
+			for (i = 0; i < pixelCount; i++) {
+				int bin = (int) ((values[i] - from) * scale);
+				histogram[bin < 0 ? 0 : bin > last ? last : bin]++;
+			}
+
+		}
+
+		synchronized (this) {
+
+			sums[index] = (s0 + s1) + (s2 + s3);
+			mins[index] = Math.min(Math.min(min0, min1), Math.min(min2, min3));
+			maxs[index] = Math.max(Math.max(max0, max1), Math.max(max2, max3));
+			if (histogram != null && histograms != null) {
+				histograms[index] = histogram;
+			}
+			measured[index] = true;
+
+		}
+
+	}
+
+	/**
+	 * Get the number of frames the header describes.
+	 *
+	 * @return
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Get the number of frames added so far.
+	 *
+	 * @return
+	 */
+	public synchronized int getMeasuredCount() {
+
+		int n = 0;
+		for (boolean m : measured) {
+			if (m) {
+				n++;
+			}
+		}
+		return n;
+
+	}
+
+	/**
+	 * Get the total counts in a frame.
+	 *
+	 * @param frame
+	 *            Zero-based frame index, in file order.
+	 * @return
+	 */
+	public synchronized double getSum(int frame) {
+		return sums[frame];
+	}
+
+	/**
+	 * Get the smallest pixel value in a frame.
+	 *
+	 * @param frame
+	 *            Zero-based frame index, in file order.
+	 * @return
+	 */
+	public synchronized float getMin(int frame) {
+		return mins[frame];
+	}
+
+	/**
+	 * Get the largest pixel value in a frame.
+	 *
+	 * @param frame
+	 *            Zero-based frame index, in file order.
+	 * @return
+	 */
+	public synchronized float getMax(int frame) {
+		return maxs[frame];
+	}
+
+	/**
+	 * Get the histogram of a frame, or null if no histogram was asked for.
+	 *
+	 * @param frame
+	 *            Zero-based frame index, in file order.
+	 * @return
+	 */
+	public synchronized int[] getHistogram(int frame) {
+		return histograms != null ? histograms[frame] : null;
+	}
+
+	/**
+	 * Get the total counts of all frames added.
+	 *
+	 * @return
+	 */
+	public synchronized double getSum() {
+
+		double sum = 0;
+		for (double s : sums) {
+			sum += s;
+		}
+		return sum;
+
+	}
+
+	/**
+	 * Get the smallest pixel value of all frames added.
+	 *
+	 * @return
+	 */
+	public synchronized float getMin() {
+
+		float min = Float.POSITIVE_INFINITY;
+		for (int i = 0; i < frameCount; i++) {
+			if (measured[i]) {
+				min = Math.min(min, mins[i]);
+			}
+		}
+		return min;
+
+	}
+
+	/**
+	 * Get the largest pixel value of all frames added.
+	 *
+	 * @return
+	 */
+	public synchronized float getMax() {
+
+		float max = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < frameCount; i++) {
+			if (measured[i]) {
+				max = Math.max(max, maxs[i]);
+			}
+		}
+		return max;
+
+	}
+
+	/**
+	 * Compare the statistics with the values stored in the header. Values the
+	 * header does not hold, or holds as zero, are not checked. The stored
+	 * total counts are compared with both the first frame and the whole set,
+	 * as archives differ in which they record, and stored values are accepted
+	 * either as they are or divided by the scale factor.
+	 *
+	 * @return A description of each mismatch; empty if there are none.
+	 */
+	public synchronized List<String> check() {
+
+		List<String> problems = new ArrayList<String>();
+
+		int missing = frameCount - getMeasuredCount();
+		if (missing > 0) {
+			problems.add(missing + " of " + frameCount + " frames were not read");
+		}
+
+		if (frameCount == missing) {
+			return problems;
+		}
+
+		float scale = header.getFloat(ADACDictionary.SCALE_FACTOR);
+
+		// The first frame can only be compared once it has been added
+		int counts = header.getInteger(ADACDictionary.TOTAL_COUNTS_IN_FRAME);
+		boolean first = measured[0] && matches(counts, sums[0], scale);
+		if (counts != 0 && !first && !matches(counts, getSum(), scale)) {
+			problems.add("Total counts in frame is " + counts + (measured[0] ? " but the first frame holds " + sums[0]
+					+ " and the set " + getSum() : " but the set holds " + getSum()));
+		}
+
+		float max = header.getFloat(ADACDictionary.MAX_VALUE_IN_SET);
+		if (max != 0 && !matches(max, getMax(), scale)) {
+			problems.add("Max value in set is " + max + " but the pixel data holds " + getMax());
+		}
+
+		float min = header.getFloat(ADACDictionary.MIN_VALUE_IN_SET);
+		if ((min != 0 || max != 0) && !matches(min, getMin(), scale)) {
+			problems.add("Min value in set is " + min + " but the pixel data holds " + getMin());
+		}
+
+		return problems;
+
+	}
+
+	/**
+	 * Check whether the statistics agree with the header.
+	 *
+	 * @return
+	 */
+	public boolean isConsistent() {
+		return check().isEmpty();
+	}
+
+	private static boolean matches(double stored, double measured, float scale) {
+
+		if (close(stored, measured)) {
+			return true;
+		}
+		return scale != 0 && scale != 1 && close(stored / scale, measured);
+
+	}
+
+	private static boolean close(double a, double b) {
+		return Math.abs(a - b) <= TOLERANCE * Math.max(1, Math.max(Math.abs(a), Math.abs(b)));
+	}
+
+	public static void main(String[] args) {
+
+		if (args.length == 0) {
+			System.err.println("Usage: ADACFrameStatistics <file> ...");
+			System.exit(1);
+		}
+
+		ADACLog log = new ADACConsoleLog(false);
+		int flagged = 0;
+
+		for (String name : args) {
+
+			File file = new File(name).getAbsoluteFile();
+
+			try {
+
+				ADACDecoder ad = ADACDecoder.open(file.getParent() + File.separator, file.getName(), log);
+				try {
+
+					List<String> problems = measure(ad).check();
+					for (String problem : problems) {
+						System.out.println(file + "\t" + problem);
+					}
+					if (!problems.isEmpty()) {
+						flagged++;
+					}
+
+				} finally {
+					ad.close();
+				}
+
+			} catch (IOException e) {
+				System.out.println(file + "\t" + e.getMessage());
+				flagged++;
+			}
+
+		}
+
+		System.err.printf("%d of %d files flagged%n", flagged, args.length);
+		System.exit(flagged > 0 ? 2 : 0);
+
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ADACFrameStatistics[frames=" + getMeasuredCount() + "/" + frameCount + ", sum=" + getSum() + ", min="
+				+ getMin() + ", max=" + getMax() + ", histogram=" + (histograms != null ? bins : 0) + "]";
+	}
+
+}
@@ -0,0 +1,583 @@
+package ADAC;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A lightweight view of the 2048 byte ADAC header. Only the key table is
+ * walked on construction, and then only to record the offset of each value in
+ * a primitive array indexed by key number (see {@link ADACDictionary}).
+ * Values are decoded from the header bytes when they are asked for, so no
+ * objects are created per label.
+ *
+ * A header is immutable once built: the bytes are private, the Extras block is
+ * scanned up front and the image layout (dimensions, gating, offset to the
+ * pixel data) is held in primitive fields. One header can be read by any
+ * number of threads without locking.
+ *
+ * @author neil
+ *
+ */
+public final class ADACHeader {
+
+	/**
+	 * The offset in bytes to the first key in the key table. The first ten
+	 * bytes hold the "adac01" preamble, the number of labels, the number of
+	 * sub-headers and an unused byte.
+	 */
+	public static final int KEY_TABLE_OFFSET = 10;
+	/**
+	 * The length in bytes of each entry in the key table.
+	 */
+	public static final int KEY_LENGTH = 6;
+
+	private final byte[] header;
+
+	// Offset to the value of each key, indexed by key number. Values always
+	// live beyond the key table so zero marks a key that is not present.
+	private final short[] offsets = new short[ADACDictionary.NUM_KEYS + 1];
+
+	// Key numbers in the order found in the header, for dumping the header
+	private final short[] order;
+	private final int labels;
+
+	private final ExtrasBlock extras;
+	private final Map<String, String> extrasMap;
+
+	// Image layout
+	private final short width;
+	private final short height;
+	private final short bitDepth;
+	private final short zDim;
+	private final short slices;
+	private final short intervals;
+	private final boolean gated;
+	private final int imageOffset;
+	private final int numberOfImages;
+
+	/**
+	 * Create a header from the first {@link ADACDictionary#IM_OFFSET} bytes of
+	 * an ADAC object. The bytes are copied.
+	 *
+	 * @param header
+	 *            The raw header bytes.
+	 */
+	public ADACHeader(byte[] header) {
+		this(header, true);
+	}
+
+	private ADACHeader(byte[] bytes, boolean copy) {
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		header = copy ? Arrays.copyOf(bytes, Math.min(bytes.length, ADACDictionary.IM_OFFSET)) : bytes;
+
+		int declared = getUnsignedShortAt(6);
+		int max = (ADACDictionary.LABEL_OFFSET - KEY_TABLE_OFFSET) / KEY_LENGTH;
+		order = new short[declared < max ? declared : max];
+
+		int found = 0;
+		for (int i = 0; i < order.length; i++) {
+
+			int pos = KEY_TABLE_OFFSET + i * KEY_LENGTH;
+
+			// Key number, data type, unused byte and offset to the value. The
+			// data type is taken from the dictionary, as in ADACKey.
+			short num = getShortAt(pos);
+			short fieldOffset = getShortAt(pos + 4);
+
+			if (num <= 0 || num > ADACDictionary.NUM_KEYS || fieldOffset < ADACDictionary.LABEL_OFFSET
+					|| fieldOffset + ADACDictionary.valLength[num] > header.length) {
+				continue;
+			}
+
+			if (offsets[num] == 0) {
+				order[found++] = num;
+			}
+			offsets[num] = fieldOffset;
+
+		}
+
+		labels = found;
+
+		metrics.stop(ADACMetrics.Stage.KEY_PARSE, start, 0);
+
+		if (hasKey(ADACDictionary.PROGRAM_SPECIFIC)) {
+			extras = new ExtrasBlock(header, offsets[ADACDictionary.PROGRAM_SPECIFIC], ExtrasKvp.LENGTH);
+		} else {
+			extras = new ExtrasBlock(header, 0, 0);
+		}
+		extrasMap = extras.asMap();
+
+		width = getShort(ADACDictionary.X_DIMENSIONS);
+		height = getShort(ADACDictionary.Y_DIMENSIONS);
+		bitDepth = getShort(ADACDictionary.PIXEL_BIT_DEPTH);
+		zDim = getShort(ADACDictionary.Z_DIMENSIONS);
+		slices = getShort(ADACDictionary.RECONSTRUCTED_SLICES);
+		intervals = getShort(ADACDictionary.NUMBER_OF_IMAGE_SETS);
+
+		// GE - Gated ECT
+		// GP - Gated planar (although these usually just get given DP)
+		String type = getString(ADACDictionary.DATA_TYPE);
+		gated = type != null && type.startsWith("G");
+
+		imageOffset = computeImageOffset();
+		numberOfImages = Math.max(1, (int) zDim) * Math.max(1, (int) slices) * Math.max(1, (int) intervals);
+
+	}
+
+	/**
+	 * Build a header over an array that nothing else holds, without copying
+	 * it.
+	 *
+	 * @param header
+	 * @return
+	 */
+	static ADACHeader wrap(byte[] header) {
+		return new ADACHeader(header, false);
+	}
+
+	/**
+	 * Read the header of an ADAC object with positional reads, leaving the
+	 * channel position untouched. Only the first
+	 * {@link ADACDictionary#IM_OFFSET} bytes are read.
+	 *
+	 * @param channel
+	 *            Channel open on the ADAC object.
+	 * @return
+	 * @throws IOException
+	 *             if the file is shorter than a header.
+	 */
+	public static ADACHeader read(FileChannel channel) throws IOException {
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		ByteBuffer buffer = ByteBuffer.allocate(ADACDictionary.IM_OFFSET);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) < 0) {
+				throw new EOFException("File too short for an ADAC header");
+			}
+		}
+
+		metrics.stop(ADACMetrics.Stage.HEADER_READ, start, buffer.capacity());
+
+		return wrap(buffer.array());
+
+	}
+
+	/**
+	 * Get the "adac01" preamble.
+	 *
+	 * @return
+	 */
+	public String getPreamble() {
+		return new String(header, 0, 6, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Get the number of valid labels found in the key table.
+	 *
+	 * @return
+	 */
+	public int getLabelCount() {
+		return labels;
+	}
+
+	/**
+	 * Get the key number of the n'th label found in the key table.
+	 *
+	 * @param n
+	 *            Index from zero to {@link #getLabelCount()} - 1
+	 * @return
+	 */
+	public short getKeyNum(int n) {
+		return order[n];
+	}
+
+	/**
+	 * Check whether the header holds a value for the key.
+	 *
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public boolean hasKey(short dictionaryKey) {
+		return dictionaryKey > 0 && dictionaryKey <= ADACDictionary.NUM_KEYS && offsets[dictionaryKey] != 0;
+	}
+
+	/**
+	 * Get the offset in bytes to the value of the key, or zero if the key is
+	 * not present.
+	 *
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public short getOffset(short dictionaryKey) {
+		return hasKey(dictionaryKey) ? offsets[dictionaryKey] : 0;
+	}
+
+	/**
+	 * Return a floating point value represented by the key argument, or zero
+	 * if the key is not present.
+	 *
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public float getFloat(short dictionaryKey) {
+		return hasKey(dictionaryKey) ? Float.intBitsToFloat(getIntAt(offsets[dictionaryKey])) : 0;
+	}
+
+	/**
+	 * Return an integer value represented by the key argument, or zero if the
+	 * key is not present.
+	 *
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public int getInteger(short dictionaryKey) {
+		return hasKey(dictionaryKey) ? getIntAt(offsets[dictionaryKey]) : 0;
+	}
+
+	/**
+	 * Return a short integer value represented by the key argument, or zero if
+	 * the key is not present.
+	 *
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public short getShort(short dictionaryKey) {
+		return hasKey(dictionaryKey) ? getShortAt(offsets[dictionaryKey]) : 0;
+	}
+
+	/**
+	 * Return a string value represented by the key argument, or null if the
+	 * key is not present. The string is the full, null-padded field as stored.
+	 *
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public String getString(short dictionaryKey) {
+
+		if (!hasKey(dictionaryKey)) {
+			return null;
+		}
+
+		return new String(header, offsets[dictionaryKey], ADACDictionary.valLength[dictionaryKey],
+				StandardCharsets.ISO_8859_1);
+
+	}
+
+	/**
+	 * Return a string value with the null padding and surrounding white space
+	 * removed, or an empty string if the key is not present.
+	 *
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public String getTrimmedString(short dictionaryKey) {
+
+		if (!hasKey(dictionaryKey)) {
+			return "";
+		}
+
+		int start = offsets[dictionaryKey];
+		int end = start + ADACDictionary.valLength[dictionaryKey];
+		for (int i = start; i < end; i++) {
+			if (header[i] == 0) {
+				end = i;
+			}
+		}
+
+		return new String(header, start, end - start, StandardCharsets.ISO_8859_1).trim();
+
+	}
+
+	/**
+	 * Get the value of a key formatted according to its dictionary type, as
+	 * shown in the header dump.
+	 *
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public String getValueString(short dictionaryKey) {
+
+		switch (ADACDictionary.type[dictionaryKey]) {
+
+		case ADACDictionary.SHORT:
+			return "" + getShort(dictionaryKey);
+
+		case ADACDictionary.INT:
+			return "" + getInteger(dictionaryKey);
+
+		case ADACDictionary.FLOAT:
+			return "" + getFloat(dictionaryKey);
+
+		case ADACDictionary.EXTRAS:
+
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < extras.size(); i++) {
+				sb.append(extras.getKey(i));
+				sb.append(" = ");
+				sb.append(extras.getValue(i));
+				sb.append("\n");
+			}
+			return sb.toString().trim();
+
+		default:
+			return getString(dictionaryKey);
+
+		}
+
+	}
+
+	/**
+	 * Get the Program Specific ("extras") block. Use this rather than
+	 * {@link #getExtras()} to look up a few keys.
+	 *
+	 * @return
+	 */
+	public ExtrasBlock getExtrasBlock() {
+		return extras;
+	}
+
+	/**
+	 * Get the Program Specific ("extras") key-value pairs as an unmodifiable
+	 * view of the Extras block.
+	 *
+	 * @return
+	 */
+	public Map<String, String> getExtras() {
+		return extrasMap;
+	}
+
+	/**
+	 * Get the image width in pixel units
+	 *
+	 * @return
+	 */
+	public short getWidth() {
+		return width;
+	}
+
+	/**
+	 * Get the image height in pixel units
+	 *
+	 * @return
+	 */
+	public short getHeight() {
+		return height;
+	}
+
+	/**
+	 * Get the bit depth of the image
+	 *
+	 * @return
+	 */
+	public short getBitDepth() {
+		return bitDepth;
+	}
+
+	/**
+	 * Get the Z-Dimension. This is usually the number of frames of a dynamic
+	 * data set.
+	 *
+	 * @return
+	 */
+	public short getZDim() {
+		return zDim;
+	}
+
+	/**
+	 * Get the number of slices in a reconstructed data set.
+	 *
+	 * @return
+	 */
+	public short getNumberOfSlices() {
+		return slices;
+	}
+
+	/**
+	 * Get the number of intervals in a gated image set
+	 *
+	 * @return
+	 */
+	public short getNumberOfGatedIntervals() {
+		return intervals;
+	}
+
+	/**
+	 * Gated data types will often require a 4D presentation.
+	 *
+	 * @return True if the image type is gated, regardless of being tomographic
+	 *         or planar.
+	 */
+	public boolean isGated() {
+		return gated;
+	}
+
+	/**
+	 * Check if the image is a tomographic reconstruction.
+	 *
+	 * @return true if the number of reconstructed slices is greater than 0,
+	 *         false otherwise.
+	 */
+	public boolean isReconstruction() {
+		return slices > 0;
+	}
+
+	/**
+	 * Get the offset, in bytes, to the image data within the file
+	 *
+	 * @return
+	 */
+	public int getImageOffset() {
+		return imageOffset;
+	}
+
+	/**
+	 * Get the total number of images in the file.
+	 *
+	 * @return
+	 */
+	public int getNumberOfImages() {
+		return numberOfImages;
+	}
+
+	/**
+	 * Get the number of frames in each gated interval: slices for a gated
+	 * reconstruction, projections for gated SPECT. For data that is not gated
+	 * this is the total number of images.
+	 *
+	 * @return
+	 */
+	public int getFramesPerInterval() {
+		return gated && intervals > 1 ? numberOfImages / intervals : numberOfImages;
+	}
+
+	/**
+	 * Get the number of bytes used to store each pixel. Objects without a bit
+	 * depth are treated as 16 bit, as in the importer.
+	 *
+	 * @return
+	 */
+	public int getBytesPerPixel() {
+		return bitDepth > 0 ? bitDepth / 8 : 2;
+	}
+
+	/**
+	 * Get the number of bytes used to store each image frame.
+	 *
+	 * @return
+	 */
+	public int getFrameSize() {
+		return width * height * getBytesPerPixel();
+	}
+
+	/**
+	 * Get the index of a frame in the file. Frames are stored interval by
+	 * interval, as ImageJ orders the frames of a hyperstack.
+	 *
+	 * @param position
+	 *            Zero-based slice, projection or frame within the interval.
+	 * @param interval
+	 *            Zero-based gated interval; zero for data that is not gated.
+	 * @return
+	 */
+	public int getFrameIndex(int position, int interval) {
+
+		int framesPerInterval = getFramesPerInterval();
+		if (position < 0 || position >= framesPerInterval || interval < 0
+				|| interval * framesPerInterval >= numberOfImages) {
+			throw new IndexOutOfBoundsException("No frame at position " + position + " of interval " + interval);
+		}
+
+		return interval * framesPerInterval + position;
+
+	}
+
+	/**
+	 * Get the offset, in bytes, of a frame within the file.
+	 *
+	 * @param position
+	 *            Zero-based slice, projection or frame within the interval.
+	 * @param interval
+	 *            Zero-based gated interval; zero for data that is not gated.
+	 * @return
+	 */
+	public long getFrameOffset(int position, int interval) {
+		return imageOffset + (long) getFrameIndex(position, interval) * getFrameSize();
+	}
+
+	/**
+	 * Get the size of each "adac01" sub-header between the header and the
+	 * pixel data, one per gated interval: 128 bytes for a gated
+	 * reconstruction, 1664 bytes for gated SPECT, and none for data that is
+	 * not gated.
+	 *
+	 * @return
+	 */
+	public int getSubHeaderSize() {
+
+		if (gated) {
+
+			if (isReconstruction()) {
+
+				// Must have a gated reconstruction. For each gated interval
+				// there is an extra 128 byte header (beginning "adac01") block
+				// starting at the normal image offset location.
+				return 128;
+
+			} else {
+
+				// Gated SPECT data set. For each azimuth there is an additional
+				// 1664 byte header (beginning "adac01") at the normal image
+				// offset location.
+				return 1664;
+
+			}
+
+		} else {
+			// Non gated data - simplest case
+			return 0;
+		}
+
+	}
+
+	private int computeImageOffset() {
+		return ADACDictionary.IM_OFFSET + intervals * getSubHeaderSize();
+	}
+
+	/**
+	 * Copy raw bytes out of the header.
+	 *
+	 * @param offset
+	 *            Offset in bytes from the start of the file.
+	 * @param dest
+	 * @param len
+	 */
+	void copyBytes(int offset, byte[] dest, int len) {
+		System.arraycopy(header, offset, dest, 0, len);
+	}
+
+	// ADAC objects are always big-endian
+
+	short getShortAt(int pos) {
+		return (short) (((header[pos] & 0xff) << 8) | (header[pos + 1] & 0xff));
+	}
+
+	private int getUnsignedShortAt(int pos) {
+		return getShortAt(pos) & 0xffff;
+	}
+
+	int getIntAt(int pos) {
+		return ((header[pos] & 0xff) << 24) | ((header[pos + 1] & 0xff) << 16) | ((header[pos + 2] & 0xff) << 8)
+				| (header[pos + 3] & 0xff);
+	}
+
+}
@@ -0,0 +1,221 @@
+package ADAC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache of decoded headers, so that studies opened again and
+ * again are not re-read. Entries are found by path and are only used while the
+ * size and modification time of the file are unchanged; the least recently
+ * used entry is dropped when the cache is full.
+ *
+ * The shared cache holds 256 headers (about 2KB each) unless the
+ * <code>adac.headerCache</code> system property says otherwise; 0 turns it
+ * off. All methods are thread-safe. Headers are read outside the lock, so a
+ * slow volume does not hold up other threads.
+ *
+ * @author neil
+ *
+ */
+public class ADACHeaderCache {
+
+	/**
+	 * System property giving the capacity of the shared cache.
+	 */
+	public static final String PROPERTY = "adac.headerCache";
+
+	private static final ADACHeaderCache shared = new ADACHeaderCache(Integer.getInteger(PROPERTY, 256));
+
+	private final int capacity;
+	private final LinkedHashMap<String, Entry> entries;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param capacity
+	 *            The most headers to hold.
+	 */
+	public ADACHeaderCache(int capacity) {
+
+		this.capacity = Math.max(0, capacity);
+
+		// Access order, so the eldest entry is the least recently used
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+
+				if (size() > ADACHeaderCache.this.capacity) {
+					evictions++;
+					return true;
+				}
+				return false;
+
+			}
+
+		};
+
+	}
+
+	/**
+	 * Get the cache shared by every decoder in the process.
+	 *
+	 * @return
+	 */
+	public static ADACHeaderCache getShared() {
+		return shared;
+	}
+
+	/**
+	 * Get the header of an ADAC object, reading it only if it is not cached or
+	 * the file has changed since it was.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public ADACHeader get(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return get(file, raf.getChannel());
+		} finally {
+			raf.close();
+		}
+
+	}
+
+	/**
+	 * Get the header of an ADAC object from a channel the caller has already
+	 * opened on it, reading it from the channel only if it is not cached or
+	 * the file has changed since it was. The file is checked once the channel
+	 * is open, so a header read on a miss comes from the same open file as
+	 * anything else read from the channel. The channel is left open.
+	 *
+	 * @param file
+	 *            The file the channel is open on, to key the cache.
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public ADACHeader get(File file, FileChannel channel) throws IOException {
+
+		String path = file.getAbsolutePath();
+		long size = channel.size();
+		long modified = Files.getLastModifiedTime(file.toPath()).toMillis();
+
+		synchronized (this) {
+
+			Entry entry = entries.get(path);
+			if (entry != null && entry.size == size && entry.modified == modified) {
+				hits++;
+				return entry.header;
+			}
+			misses++;
+
+		}
+
+		ADACHeader header = ADACHeader.read(channel);
+		put(file, size, modified, header);
+
+		return header;
+
+	}
+
+	/**
+	 * Add a header read elsewhere, for a file of the given size and
+	 * modification time.
+	 *
+	 * @param file
+	 * @param size
+	 * @param modified
+	 *            Modification time in milliseconds.
+	 * @param header
+	 */
+	public void put(File file, long size, long modified, ADACHeader header) {
+
+		// Only cache what looks like an ADAC object
+		if (capacity > 0 && header.getLabelCount() > 0) {
+			synchronized (this) {
+				entries.put(file.getAbsolutePath(), new Entry(size, modified, header));
+			}
+		}
+
+	}
+
+	/**
+	 * Drop every header.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the number of headers served from the cache.
+	 *
+	 * @return
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of headers that had to be read.
+	 *
+	 * @return
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of headers dropped to make room for others.
+	 *
+	 * @return
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized String toString() {
+
+		long requests = hits + misses;
+		return String.format("ADAC header cache: %d of %d headers, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+				entries.size(), capacity, hits, misses, requests > 0 ? 100.0 * hits / requests : 0.0, evictions);
+
+	}
+
+	private static class Entry {
+
+		final long size;
+		final long modified;
+		final ADACHeader header;
+
+		Entry(long size, long modified, ADACHeader header) {
+			this.size = size;
+			this.modified = modified;
+			this.header = header;
+		}
+
+	}
+
+}
@@ -0,0 +1,623 @@
+package ADAC;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A persistent catalogue of ADAC headers. Selected dictionary fields and
+ * Extras items are held in columns, one row per file sorted by path, and every
+ * string column carries an inverted index from each distinct value to the rows
+ * holding it. Queries are answered from the index without touching the
+ * archive.
+ *
+ * An index is rebuilt with {@link #update(File, ADACIndex, ADACLog)}, which only
+ * re-reads the headers of files whose size or modification time has changed.
+ *
+ * From the command line:
+ *
+ * <pre>
+ * java -cp ADAC_Utils.jar ADAC.ADACIndex update index.adx /archive
+ * java -cp ADAC_Utils.jar ADAC.ADACIndex query index.adx PATIENT_ID=123456 ACQUISITION_DATE=20150101..20151231
+ * </pre>
+ *
+ * @author neil
+ *
+ */
+public class ADACIndex {
+
+	/**
+	 * Indexed string columns. Dictionary fields are named after their
+	 * {@link ADACDictionary} constant, Extras items after their four character
+	 * key.
+	 */
+	public static final String[] STRING_COLUMNS = { "PATIENT_ID", "PATIENT_NAME", "ACQUISITION_DATE",
+			"DATA_TYPE", "EXAM_PROCEDURE", ExtrasKvp.STUID_KEY, ExtrasKvp.LONG_ID_KEY, ExtrasKvp.ACCNUM_KEY };
+	private static final short[] STRING_KEYS = { ADACDictionary.PATIENT_ID, ADACDictionary.PATIENT_NAME,
+			ADACDictionary.ACQUISITION_DATE, ADACDictionary.DATA_TYPE, ADACDictionary.EXAM_PROCEDURE, 0, 0, 0 };
+	private static final int[] EXTRAS_KEYS = { 0, 0, 0, 0, 0, ExtrasBlock.key(ExtrasKvp.STUID_KEY),
+			ExtrasBlock.key(ExtrasKvp.LONG_ID_KEY), ExtrasBlock.key(ExtrasKvp.ACCNUM_KEY) };
+
+	/**
+	 * Numeric columns, named after their {@link ADACDictionary} constant.
+	 */
+	public static final String[] SHORT_COLUMNS = { "X_DIMENSIONS", "Y_DIMENSIONS", "Z_DIMENSIONS",
+			"NUMBER_OF_IMAGE_SETS", "RECONSTRUCTED_SLICES", "PIXEL_BIT_DEPTH" };
+	private static final short[] SHORT_KEYS = { ADACDictionary.X_DIMENSIONS, ADACDictionary.Y_DIMENSIONS,
+			ADACDictionary.Z_DIMENSIONS, ADACDictionary.NUMBER_OF_IMAGE_SETS, ADACDictionary.RECONSTRUCTED_SLICES,
+			ADACDictionary.PIXEL_BIT_DEPTH };
+
+	private static final String MAGIC = "ADACIDX1";
+
+	private final String[] paths;
+	private final long[] sizes;
+	private final long[] mtimes;
+	private final short[][] shorts;
+
+	// For each string column: the sorted distinct values, the value of each
+	// row as an index into them, and the rows holding each value
+	private final String[][] values;
+	private final int[][] codes;
+	private final int[][][] postings;
+
+	private ADACIndex(String[] paths, long[] sizes, long[] mtimes, short[][] shorts, String[][] values,
+			int[][] codes, int[][][] postings) {
+
+		this.paths = paths;
+		this.sizes = sizes;
+		this.mtimes = mtimes;
+		this.shorts = shorts;
+		this.values = values;
+		this.codes = codes;
+		this.postings = postings;
+
+	}
+
+	public static void main(String[] args) {
+
+		if (args.length < 2 || !(args[0].equals("update") && args.length == 3 || args[0].equals("query"))) {
+			System.err.println("Usage: ADACIndex update <index> <directory>");
+			System.err.println("       ADACIndex query <index> COLUMN=value|COLUMN=low..high ...");
+			System.exit(1);
+		}
+
+		File indexFile = new File(args[1]);
+
+		try {
+
+			if (args[0].equals("update")) {
+
+				long start = System.nanoTime();
+				ADACIndex previous = indexFile.exists() ? load(indexFile) : null;
+				ADACIndex index = update(new File(args[2]), previous, new ADACConsoleLog(false));
+				index.save(indexFile);
+				System.err.printf("Indexed %d files in %.1f s%n", index.size(), (System.nanoTime() - start) / 1e9);
+
+			} else {
+
+				ADACIndex index = load(indexFile);
+				long start = System.nanoTime();
+				int[] rows = index.query(Arrays.copyOfRange(args, 2, args.length));
+				for (int row : rows) {
+					System.out.println(index.getPath(row));
+				}
+				System.err.printf("%d matches in %.3f ms%n", rows.length, (System.nanoTime() - start) / 1e6);
+
+			}
+
+		} catch (IOException e) {
+			System.err.println("ADACIndex: " + e.getMessage());
+			System.exit(1);
+		}
+
+	}
+
+	/**
+	 * Index every file below a directory. Rows of the previous index are
+	 * reused for files whose size and modification time are unchanged; all
+	 * other files have their header read. Files that are not ADAC objects are
+	 * kept as empty rows so they are not read again.
+	 *
+	 * @param root
+	 *            Directory tree holding the ADAC objects.
+	 * @param previous
+	 *            The previous index, or null to read every header.
+	 * @param adacLog
+	 * @return
+	 * @throws IOException
+	 */
+	public static ADACIndex update(File root, ADACIndex previous, ADACLog adacLog) throws IOException {
+
+		final TreeMap<String, BasicFileAttributes> files = new TreeMap<String, BasicFileAttributes>();
+
+		Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					files.put(file.toAbsolutePath().toString(), attrs);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				adacLog.log("ADACIndex: skipping " + file + ": " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		int rows = files.size();
+		String[] paths = new String[rows];
+		long[] sizes = new long[rows];
+		long[] mtimes = new long[rows];
+		short[][] shorts = new short[SHORT_COLUMNS.length][rows];
+		String[][] strings = new String[STRING_COLUMNS.length][rows];
+
+		int row = 0;
+		int reread = 0;
+		for (Map.Entry<String, BasicFileAttributes> entry : files.entrySet()) {
+
+			paths[row] = entry.getKey();
+			sizes[row] = entry.getValue().size();
+			mtimes[row] = entry.getValue().lastModifiedTime().toMillis();
+
+			int old = previous != null ? previous.find(paths[row]) : -1;
+
+			if (old >= 0 && previous.sizes[old] == sizes[row] && previous.mtimes[old] == mtimes[row]) {
+
+				for (int c = 0; c < SHORT_COLUMNS.length; c++) {
+					shorts[c][row] = previous.shorts[c][old];
+				}
+				for (int c = 0; c < STRING_COLUMNS.length; c++) {
+					strings[c][row] = previous.getString(old, c);
+				}
+
+			} else {
+
+				readRow(new File(paths[row]), row, shorts, strings, adacLog);
+				reread++;
+
+			}
+
+			row++;
+
+		}
+
+		adacLog.log("ADACIndex: read " + reread + " of " + rows + " headers");
+
+		return build(paths, sizes, mtimes, shorts, strings);
+
+	}
+
+	/**
+	 * Load an index from disk.
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ADACIndex load(File file) throws IOException {
+
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+
+		try {
+
+			byte[] magic = new byte[MAGIC.length()];
+			in.readFully(magic);
+			if (!MAGIC.equals(new String(magic, "US-ASCII"))) {
+				throw new IOException(file + " is not an ADAC index");
+			}
+
+			int rows = in.readInt();
+
+			String[] paths = new String[rows];
+			long[] sizes = new long[rows];
+			long[] mtimes = new long[rows];
+			for (int i = 0; i < rows; i++) {
+				paths[i] = in.readUTF();
+			}
+			for (int i = 0; i < rows; i++) {
+				sizes[i] = in.readLong();
+			}
+			for (int i = 0; i < rows; i++) {
+				mtimes[i] = in.readLong();
+			}
+
+			short[][] shorts = new short[SHORT_COLUMNS.length][rows];
+			for (int c = 0; c < SHORT_COLUMNS.length; c++) {
+				for (int i = 0; i < rows; i++) {
+					shorts[c][i] = in.readShort();
+				}
+			}
+
+			String[][] values = new String[STRING_COLUMNS.length][];
+			int[][] codes = new int[STRING_COLUMNS.length][rows];
+			int[][][] postings = new int[STRING_COLUMNS.length][][];
+
+			for (int c = 0; c < STRING_COLUMNS.length; c++) {
+
+				values[c] = new String[in.readInt()];
+				postings[c] = new int[values[c].length][];
+
+				for (int v = 0; v < values[c].length; v++) {
+
+					values[c][v] = in.readUTF();
+					postings[c][v] = new int[in.readInt()];
+
+					for (int p = 0; p < postings[c][v].length; p++) {
+						int r = in.readInt();
+						postings[c][v][p] = r;
+						codes[c][r] = v;
+					}
+
+				}
+
+			}
+
+			return new ADACIndex(paths, sizes, mtimes, shorts, values, codes, postings);
+
+		} finally {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Write the index to disk. Columns are written one after the other, each
+	 * string column as its sorted distinct values with the rows that hold them.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public void save(File file) throws IOException {
+
+		// Write alongside and then replace, so a failure leaves the old index
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+
+		try {
+
+			out.writeBytes(MAGIC);
+			out.writeInt(size());
+
+			for (String path : paths) {
+				out.writeUTF(path);
+			}
+			for (long size : sizes) {
+				out.writeLong(size);
+			}
+			for (long mtime : mtimes) {
+				out.writeLong(mtime);
+			}
+
+			for (short[] column : shorts) {
+				for (short value : column) {
+					out.writeShort(value);
+				}
+			}
+
+			for (int c = 0; c < STRING_COLUMNS.length; c++) {
+
+				out.writeInt(values[c].length);
+
+				for (int v = 0; v < values[c].length; v++) {
+
+					out.writeUTF(values[c][v]);
+					out.writeInt(postings[c][v].length);
+					for (int r : postings[c][v]) {
+						out.writeInt(r);
+					}
+
+				}
+
+			}
+
+		} finally {
+			out.close();
+		}
+
+		// Readers see either the old index or the new one, never neither
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	}
+
+	/**
+	 * Find the rows matching every term. Each term is COLUMN=value for an exact
+	 * match or COLUMN=low..high for an inclusive range of sorted values (useful
+	 * for YYYYMMDD dates). Numeric columns only support exact matches.
+	 *
+	 * @param terms
+	 * @return The matching rows in path order.
+	 * @throws IllegalArgumentException
+	 *             for an unknown column or badly formed term.
+	 */
+	public int[] query(String... terms) {
+
+		int[] result = null;
+
+		for (String term : terms) {
+
+			int eq = term.indexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("Expected COLUMN=value: " + term);
+			}
+
+			int[] rows = select(term.substring(0, eq), term.substring(eq + 1));
+			result = result == null ? rows : intersect(result, rows);
+
+		}
+
+		if (result == null) {
+			result = new int[size()];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = i;
+			}
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Get the rows holding a value, or a range of values, of a column.
+	 *
+	 * @param column
+	 *            A name from {@link #STRING_COLUMNS} or {@link #SHORT_COLUMNS}.
+	 * @param value
+	 *            The value, or low..high for a range.
+	 * @return The matching rows in path order.
+	 */
+	public int[] select(String column, String value) {
+
+		int c = indexOf(STRING_COLUMNS, column);
+
+		if (c >= 0) {
+
+			int range = value.indexOf("..");
+			String low = range >= 0 ? value.substring(0, range) : value;
+			String high = range >= 0 ? value.substring(range + 2) : value;
+
+			// Distinct values are sorted, so a range is a run of them
+			int first = Arrays.binarySearch(values[c], low);
+			first = first >= 0 ? first : -first - 1;
+			int last = Arrays.binarySearch(values[c], high);
+			last = last >= 0 ? last : -last - 2;
+
+			if (first == last) {
+				return postings[c][first].clone();
+			}
+
+			// Mark the rows of every value in the range, then collect them in
+			// path order
+			boolean[] marked = new boolean[size()];
+			int n = 0;
+			for (int v = first; v <= last; v++) {
+				for (int r : postings[c][v]) {
+					marked[r] = true;
+				}
+				n += postings[c][v].length;
+			}
+
+			int[] rows = new int[n];
+			n = 0;
+			for (int r = 0; r < marked.length; r++) {
+				if (marked[r]) {
+					rows[n++] = r;
+				}
+			}
+			return rows;
+
+		}
+
+		c = indexOf(SHORT_COLUMNS, column);
+
+		if (c >= 0) {
+
+			short target = Short.parseShort(value);
+			int[] rows = new int[size()];
+			int n = 0;
+			for (int i = 0; i < shorts[c].length; i++) {
+				if (shorts[c][i] == target) {
+					rows[n++] = i;
+				}
+			}
+			return Arrays.copyOf(rows, n);
+
+		}
+
+		throw new IllegalArgumentException("Unknown column " + column);
+
+	}
+
+	/**
+	 * Get the row of a file, or -1 if it is not indexed.
+	 *
+	 * @param path
+	 *            Absolute path to the file.
+	 * @return
+	 */
+	public int find(String path) {
+
+		int row = Arrays.binarySearch(paths, path);
+		return row >= 0 ? row : -1;
+
+	}
+
+	public String getPath(int row) {
+		return paths[row];
+	}
+
+	public long getSize(int row) {
+		return sizes[row];
+	}
+
+	public long getModified(int row) {
+		return mtimes[row];
+	}
+
+	/**
+	 * Get the value of a numeric column.
+	 *
+	 * @param row
+	 * @param column
+	 *            Index into {@link #SHORT_COLUMNS}.
+	 * @return
+	 */
+	public short getShort(int row, int column) {
+		return shorts[column][row];
+	}
+
+	/**
+	 * Get the value of a string column.
+	 *
+	 * @param row
+	 * @param column
+	 *            Index into {@link #STRING_COLUMNS}.
+	 * @return
+	 */
+	public String getString(int row, int column) {
+		return values[column][codes[column][row]];
+	}
+
+	/**
+	 * Get the number of files in the index.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return paths.length;
+	}
+
+	private static ADACIndex build(String[] paths, long[] sizes, long[] mtimes, short[][] shorts,
+			String[][] strings) {
+
+		int rows = paths.length;
+		String[][] values = new String[STRING_COLUMNS.length][];
+		int[][] codes = new int[STRING_COLUMNS.length][rows];
+		int[][][] postings = new int[STRING_COLUMNS.length][][];
+
+		for (int c = 0; c < STRING_COLUMNS.length; c++) {
+
+			// Sorted distinct values with the rows holding each
+			TreeMap<String, List<Integer>> inverted = new TreeMap<String, List<Integer>>();
+			for (int r = 0; r < rows; r++) {
+				List<Integer> list = inverted.get(strings[c][r]);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					inverted.put(strings[c][r], list);
+				}
+				list.add(r);
+			}
+
+			values[c] = inverted.keySet().toArray(new String[inverted.size()]);
+			postings[c] = new int[values[c].length][];
+
+			for (int v = 0; v < values[c].length; v++) {
+
+				List<Integer> list = inverted.get(values[c][v]);
+				postings[c][v] = new int[list.size()];
+				for (int p = 0; p < postings[c][v].length; p++) {
+					postings[c][v][p] = list.get(p);
+					codes[c][postings[c][v][p]] = v;
+				}
+
+			}
+
+		}
+
+		return new ADACIndex(paths, sizes, mtimes, shorts, values, codes, postings);
+
+	}
+
+	private static void readRow(File file, int row, short[][] shorts, String[][] strings, ADACLog adacLog) {
+
+		ADACHeader header = null;
+
+		try {
+
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				header = ADACHeader.read(raf.getChannel());
+			} finally {
+				raf.close();
+			}
+
+		} catch (IOException e) {
+			adacLog.log("ADACIndex: skipping " + file + ": " + e.getMessage());
+		}
+
+		if (header != null && header.getLabelCount() == 0) {
+			header = null;
+		}
+
+		for (int c = 0; c < SHORT_COLUMNS.length; c++) {
+			shorts[c][row] = header != null ? header.getShort(SHORT_KEYS[c]) : 0;
+		}
+
+		ExtrasBlock extras = header != null ? header.getExtrasBlock() : null;
+
+		for (int c = 0; c < STRING_COLUMNS.length; c++) {
+
+			String value;
+			if (header == null) {
+				value = "";
+			} else if (STRING_KEYS[c] > 0) {
+				value = header.getTrimmedString(STRING_KEYS[c]);
+			} else {
+				value = extras.get(EXTRAS_KEYS[c]);
+				value = value != null ? value.trim() : "";
+			}
+			strings[c][row] = value;
+
+		}
+
+	}
+
+	private static int indexOf(String[] names, String name) {
+
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+
+	}
+
+	private static int[] intersect(int[] a, int[] b) {
+
+		int[] out = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				out[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(out, n);
+
+	}
+
+}
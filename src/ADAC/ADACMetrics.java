@@ -0,0 +1,73 @@
+package ADAC;
+
+/**
+ * Timing and byte counts for each stage of decoding an ADAC object. Install an
+ * implementation with {@link ADACDecoder#setMetrics(ADACMetrics)}; the default,
+ * {@link #NONE}, does nothing and does not read the clock.
+ *
+ * Stages may nest: building a stack includes the pixel reads it makes.
+ *
+ * @author neil
+ *
+ */
+public interface ADACMetrics {
+
+	public enum Stage {
+		/** Reading the 2048 byte header from a file or stream. */
+		HEADER_READ,
+		/** Walking the key table. */
+		KEY_PARSE,
+		/** Splitting the Extras block into key-value pairs. */
+		EXTRAS_PARSE,
+		/** Reading or mapping pixel data. */
+		PIXEL_IO,
+		/** Decoding frames and assembling an image stack. */
+		STACK_BUILD
+	}
+
+	/**
+	 * Metrics that are never recorded.
+	 */
+	public static final ADACMetrics NONE = new ADACMetrics() {
+
+		public long start() {
+			return 0;
+		}
+
+		public void stop(Stage stage, long start, long bytes) {
+		}
+
+		public void file(String name, long bytes) {
+		}
+
+	};
+
+	/**
+	 * Get the start time of a stage, to be passed back to
+	 * {@link #stop(Stage, long, long)}.
+	 *
+	 * @return
+	 */
+	public long start();
+
+	/**
+	 * Record the end of a stage.
+	 *
+	 * @param stage
+	 * @param start
+	 *            The value returned by {@link #start()}.
+	 * @param bytes
+	 *            The number of bytes read by the stage, or 0.
+	 */
+	public void stop(Stage stage, long start, long bytes);
+
+	/**
+	 * Record the total number of bytes read from an ADAC object.
+	 *
+	 * @param name
+	 *            The file name or URL of the object.
+	 * @param bytes
+	 */
+	public void file(String name, long bytes);
+
+}
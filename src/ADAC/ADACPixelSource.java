@@ -0,0 +1,241 @@
+package ADAC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory-mapped access to the pixel data of an ADAC object. The file is mapped
+ * from {@link ADACDecoder#getImageOffset()} and each frame is handed out as a
+ * big-endian view, so nothing is copied onto the heap until a frame is
+ * decoded.
+ *
+ * @author neil
+ *
+ */
+public class ADACPixelSource implements ADACFrameSource {
+
+	private final ByteBuffer[] segments;
+	private final int framesPerSegment;
+	private final int frameCount;
+	private final int frameSize;
+	private final int width;
+	private final int height;
+	private final short bitDepth;
+
+	/**
+	 * Map the pixel data of an ADAC object. The file is closed once mapped; the
+	 * mapping stays valid until it is garbage collected.
+	 *
+	 * @param file
+	 *            The ADAC object.
+	 * @param ad
+	 *            The decoded header of the object.
+	 * @throws IOException
+	 */
+	public ADACPixelSource(File file, ADACDecoder ad) throws IOException {
+		this(map(file, ad), ad);
+	}
+
+	/**
+	 * Map the pixel data of an ADAC object from an open channel. The channel
+	 * is left open and belongs to the caller.
+	 *
+	 * @param channel
+	 *            Channel open on the ADAC object.
+	 * @param ad
+	 *            The decoded header of the object.
+	 * @throws IOException
+	 */
+	public ADACPixelSource(FileChannel channel, ADACDecoder ad) throws IOException {
+		this(map(channel, ad), ad);
+	}
+
+	/**
+	 * Frame access over an ADAC object that is already held in memory.
+	 *
+	 * @param data
+	 *            The whole object, positioned at the first header byte.
+	 * @param ad
+	 *            The decoded header of the object.
+	 */
+	public ADACPixelSource(ByteBuffer data, ADACDecoder ad) {
+		this(slice(data, ad), ad);
+	}
+
+	private ADACPixelSource(ByteBuffer[] segments, ADACDecoder ad) {
+
+		this.segments = segments;
+		frameSize = ad.getFrameSize();
+		framesPerSegment = segmentFrames(frameSize);
+		frameCount = countFrames(segments, framesPerSegment, frameSize);
+		width = ad.getWidth();
+		height = ad.getHeight();
+		bitDepth = ad.getBitDepth();
+
+	}
+
+	/**
+	 * Get a frame of pixel data as a read-only, big-endian view positioned at
+	 * the first pixel. Each call returns a new view, so frames may be read from
+	 * several threads at once.
+	 *
+	 * @param index
+	 *            Zero-based frame index.
+	 * @return
+	 */
+	public ByteBuffer getFrame(int index) {
+
+		if (index < 0 || index >= frameCount) {
+			throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+		}
+
+		ByteBuffer frame = segments[index / framesPerSegment].duplicate();
+		int start = (index % framesPerSegment) * frameSize;
+		frame.limit(start + frameSize);
+		frame.position(start);
+
+		return frame.slice().order(ByteOrder.BIG_ENDIAN);
+
+	}
+
+	/**
+	 * Get the bit depth of the pixel data.
+	 *
+	 * @return
+	 */
+	public short getBitDepth() {
+		return bitDepth;
+	}
+
+	/**
+	 * Get the number of complete frames available in the file. This may be
+	 * fewer than {@link ADACDecoder#getNumberOfImages()} if the file has been
+	 * truncated.
+	 *
+	 * @return
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Get the size of each frame in bytes.
+	 *
+	 * @return
+	 */
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	/**
+	 * Get the frame height in pixel units.
+	 *
+	 * @return
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Get the frame width in pixel units.
+	 *
+	 * @return
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	private static int countFrames(ByteBuffer[] segments, int framesPerSegment, int frameSize) {
+
+		if (segments.length == 0) {
+			return 0;
+		}
+
+		int lastFrames = segments[segments.length - 1].capacity() / frameSize;
+		return (segments.length - 1) * framesPerSegment + lastFrames;
+
+	}
+
+	private static ByteBuffer[] map(File file, ADACDecoder ad) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return map(raf.getChannel(), ad);
+		} finally {
+			raf.close();
+		}
+
+	}
+
+	/**
+	 * Map the pixel data in segments of whole frames. A single mapping is
+	 * limited to 2GB.
+	 *
+	 * @param channel
+	 * @param ad
+	 * @return
+	 * @throws IOException
+	 */
+	private static ByteBuffer[] map(FileChannel channel, ADACDecoder ad) throws IOException {
+
+		int frameSize = ad.getFrameSize();
+		long offset = ad.getImageOffset();
+
+		if (frameSize <= 0) {
+			return new ByteBuffer[0];
+		}
+
+		// Only map whole frames that are present in the file
+		long available = Math.max(0, channel.size() - offset) / frameSize;
+		long frames = Math.min(ad.getNumberOfImages(), available);
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		int framesPerSegment = segmentFrames(frameSize);
+		int nSegments = (int) ((frames + framesPerSegment - 1) / framesPerSegment);
+		ByteBuffer[] segments = new ByteBuffer[nSegments];
+
+		for (int i = 0; i < nSegments; i++) {
+
+			long first = (long) i * framesPerSegment;
+			long count = Math.min(framesPerSegment, frames - first);
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first * frameSize, count * frameSize);
+
+		}
+
+		metrics.stop(ADACMetrics.Stage.PIXEL_IO, start, frames * frameSize);
+		return segments;
+
+	}
+
+	private static ByteBuffer[] slice(ByteBuffer data, ADACDecoder ad) {
+
+		int frameSize = ad.getFrameSize();
+		int offset = ad.getImageOffset();
+		int length = data.remaining() - offset;
+
+		if (frameSize <= 0 || length < frameSize) {
+			return new ByteBuffer[0];
+		}
+
+		// Only whole frames that are present
+		long frames = Math.min(ad.getNumberOfImages(), length / frameSize);
+
+		ByteBuffer pixels = data.duplicate();
+		pixels.position(data.position() + offset);
+		pixels.limit(pixels.position() + (int) (frames * frameSize));
+
+		return new ByteBuffer[] { pixels.slice() };
+
+	}
+
+	private static int segmentFrames(int frameSize) {
+		return frameSize > 0 ? Math.max(1, Integer.MAX_VALUE / frameSize) : 1;
+	}
+
+}
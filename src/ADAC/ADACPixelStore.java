@@ -0,0 +1,294 @@
+package ADAC;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * The pixel data of an ADAC object copied into direct (off-heap) buffers, for
+ * objects read from a stream or URL, which cannot be mapped. Only the frame
+ * being worked on needs to be on the heap, so long dynamics and whole-body
+ * sweeps can be held by a JVM with a small heap. The buffers are released when
+ * the store is garbage collected.
+ *
+ * Pixels can be read in place with {@link #getByte(int, int, int)} (8 bit),
+ * {@link #getShort(int, int, int)} (16 bit) and
+ * {@link #getFloat(int, int, int)} (32 bit), or whole frames decoded through
+ * {@link ADACFrameSource}.
+ *
+ * The importer keeps streamed objects off the heap in a store when ImageJ is
+ * started with <code>-Dadac.offHeap=true</code>.
+ *
+ * @author neil
+ *
+ */
+public class ADACPixelStore implements ADACFrameSource {
+
+	/**
+	 * System property that makes the importer hold streamed pixel data in a
+	 * store rather than on the heap.
+	 */
+	public static final String PROPERTY = "adac.offHeap";
+
+	private final ByteBuffer[] segments;
+	private final int framesPerSegment;
+	private final int frameCount;
+	private final int frameSize;
+	private final int width;
+	private final int height;
+	private final short bitDepth;
+
+	private ADACPixelStore(ByteBuffer[] segments, int frameCount, ADACDecoder ad) {
+
+		this.segments = segments;
+		this.frameCount = frameCount;
+		frameSize = ad.getFrameSize();
+		framesPerSegment = segmentFrames(frameSize);
+		width = ad.getWidth();
+		height = ad.getHeight();
+		bitDepth = ad.getBitDepth();
+
+	}
+
+	/**
+	 * Copy the pixel data of an object from the file or stream its header was
+	 * read from.
+	 *
+	 * @param ad
+	 * @return
+	 * @throws IOException
+	 */
+	public static ADACPixelStore read(ADACDecoder ad) throws IOException {
+
+		if (ad.getChannel() != null) {
+			return read(ad, ad.getChannel());
+		}
+
+		InputStream in = ad.getImageStream();
+		if (in == null) {
+			throw new IOException("The decoder has no pixel data source");
+		}
+		return read(ad, in);
+
+	}
+
+	/**
+	 * Copy the pixel data of an object from a stream positioned at
+	 * {@link ADACDecoder#getImageOffset()}, such as
+	 * {@link ADACDecoder#getImageStream()}.
+	 *
+	 * @param ad
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static ADACPixelStore read(ADACDecoder ad, InputStream in) throws IOException {
+		return read(ad, Channels.newChannel(in));
+	}
+
+	/**
+	 * Copy the pixel data of an object from a channel. A {@link FileChannel}
+	 * is read with positional reads from {@link ADACDecoder#getImageOffset()}
+	 * and its position left alone; any other channel must be positioned at
+	 * the image offset. If the data ends early only the complete frames are
+	 * kept.
+	 *
+	 * @param ad
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static ADACPixelStore read(ADACDecoder ad, ReadableByteChannel channel) throws IOException {
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		int frameSize = ad.getFrameSize();
+		int frames = frameSize > 0 ? ad.getNumberOfImages() : 0;
+		int framesPerSegment = segmentFrames(frameSize);
+
+		FileChannel file = channel instanceof FileChannel ? (FileChannel) channel : null;
+		long position = ad.getImageOffset();
+		if (file != null) {
+			frames = (int) Math.min(frames, Math.max(0, file.size() - position) / Math.max(1, frameSize));
+		}
+
+		ByteBuffer[] segments = new ByteBuffer[(frames + framesPerSegment - 1) / framesPerSegment];
+		int complete = 0;
+		int used = 0;
+
+		// Stop after a segment that could not be filled
+		for (int i = 0; i < segments.length && complete == i * framesPerSegment; i++) {
+
+			int count = Math.min(framesPerSegment, frames - i * framesPerSegment);
+			ByteBuffer segment = ByteBuffer.allocateDirect(count * frameSize);
+
+			while (segment.hasRemaining()) {
+				int n = file != null ? file.read(segment, position) : channel.read(segment);
+				if (n < 0) {
+					break;
+				}
+				position += n;
+			}
+
+			complete += segment.position() / frameSize;
+			segment.clear();
+			segments[used++] = segment;
+
+		}
+
+		if (used < segments.length) {
+			segments = Arrays.copyOf(segments, used);
+		}
+
+		metrics.stop(ADACMetrics.Stage.PIXEL_IO, start, (long) complete * frameSize);
+
+		return new ADACPixelStore(segments, complete, ad);
+
+	}
+
+	public ByteBuffer getFrame(int index) {
+
+		checkFrame(index);
+
+		ByteBuffer frame = segments[index / framesPerSegment].duplicate();
+		int start = (index % framesPerSegment) * frameSize;
+		frame.limit(start + frameSize);
+		frame.position(start);
+
+		return frame.slice().asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN);
+
+	}
+
+	/**
+	 * Get an 8 bit pixel value.
+	 *
+	 * @param frame
+	 *            Zero-based frame index.
+	 * @param x
+	 * @param y
+	 * @return The unsigned value.
+	 */
+	public int getByte(int frame, int x, int y) {
+		return segment(frame).get(position(frame, x, y, 1)) & 0xff;
+	}
+
+	/**
+	 * Get a 16 bit pixel value.
+	 *
+	 * @param frame
+	 *            Zero-based frame index.
+	 * @param x
+	 * @param y
+	 * @return The signed value, without ImageJ's 32768 offset.
+	 */
+	public short getShort(int frame, int x, int y) {
+		return segment(frame).getShort(position(frame, x, y, 2));
+	}
+
+	/**
+	 * Get a 32 bit pixel value.
+	 *
+	 * @param frame
+	 *            Zero-based frame index.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public float getFloat(int frame, int x, int y) {
+		return segment(frame).getFloat(position(frame, x, y, 4));
+	}
+
+	/**
+	 * Get a pixel value whatever the bit depth, as
+	 * {@link ADACFrameDecoder#getValues(ByteBuffer, short, float[], int)}
+	 * would.
+	 *
+	 * @param frame
+	 *            Zero-based frame index.
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public float getValue(int frame, int x, int y) {
+
+		switch (bitDepth) {
+		case 8:
+			return getByte(frame, x, y);
+		case 32:
+			return getFloat(frame, x, y);
+		default:
+			return getShort(frame, x, y);
+		}
+
+	}
+
+	public short getBitDepth() {
+		return bitDepth;
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Get the number of bytes held off the heap.
+	 *
+	 * @return
+	 */
+	public long getCapacity() {
+
+		long capacity = 0;
+		for (ByteBuffer segment : segments) {
+			capacity += segment.capacity();
+		}
+		return capacity;
+
+	}
+
+	private void checkFrame(int index) {
+
+		if (index < 0 || index >= frameCount) {
+			throw new IndexOutOfBoundsException("Frame " + index + " of " + frameCount);
+		}
+
+	}
+
+	private ByteBuffer segment(int frame) {
+
+		checkFrame(frame);
+		return segments[frame / framesPerSegment];
+
+	}
+
+	private int position(int frame, int x, int y, int bytesPerPixel) {
+
+		if (x < 0 || x >= width || y < 0 || y >= height) {
+			throw new IndexOutOfBoundsException("Pixel " + x + "," + y + " of " + width + "x" + height);
+		}
+		return (frame % framesPerSegment) * frameSize + (y * width + x) * bytesPerPixel;
+
+	}
+
+	private static int segmentFrames(int frameSize) {
+		return frameSize > 0 ? Math.max(1, Integer.MAX_VALUE / frameSize) : 1;
+	}
+
+}
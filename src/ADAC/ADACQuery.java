@@ -0,0 +1,479 @@
+package ADAC;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prints selected header fields of every ADAC object under one or more
+ * directories, as CSV or JSON, without opening any images. Only the first
+ * {@link ADACDictionary#IM_OFFSET} bytes of each file are read, with
+ * positional reads, and directories are walked and headers parsed in
+ * parallel.
+ *
+ * Dictionary fields are named after their {@link ADACDictionary} constant,
+ * Extras items after their four character key. The path of each file is
+ * always the first column.
+ *
+ * <pre>
+ * java -cp ADAC_Utils.jar ADAC.ADACQuery /archive
+ * java -cp ADAC_Utils.jar ADAC.ADACQuery -json -fields PATIENT_ID,DATA_TYPE,X_DIMENSIONS,WLAS /archive
+ * </pre>
+ *
+ * @author neil
+ *
+ */
+public class ADACQuery {
+
+	/**
+	 * Fields printed when none are given.
+	 */
+	public static final String[] DEFAULT_FIELDS = { "PATIENT_ID", "PATIENT_NAME", "ACQUISITION_DATE", "DATA_TYPE",
+			"X_DIMENSIONS", "Y_DIMENSIONS", "Z_DIMENSIONS" };
+
+	private final String[] names;
+	private final short[] keys;
+	private final int[] extrasKeys;
+	private final boolean json;
+	private final PrintWriter out;
+
+	private final AtomicLong read = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private boolean first = true;
+
+	/**
+	 * Create a query printing fields to a writer.
+	 *
+	 * @param fields
+	 *            Dictionary constant names or four character Extras keys.
+	 * @param json
+	 *            Print a JSON array of objects rather than CSV.
+	 * @param out
+	 */
+	public ADACQuery(String[] fields, boolean json, PrintWriter out) {
+
+		names = fields.clone();
+		keys = new short[names.length];
+		extrasKeys = new int[names.length];
+
+		for (int i = 0; i < names.length; i++) {
+			keys[i] = ADACDictionary.getKeyNum(names[i]);
+			if (keys[i] == 0) {
+				if (names[i].length() != 4) {
+					throw new IllegalArgumentException("Unknown field " + names[i]);
+				}
+				extrasKeys[i] = ExtrasBlock.key(names[i]);
+			}
+		}
+
+		this.json = json;
+		this.out = out;
+
+	}
+
+	public static void main(String[] args) {
+
+		String[] fields = DEFAULT_FIELDS;
+		boolean json = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<Path> roots = new ArrayList<Path>();
+
+		try {
+
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-json")) {
+					json = true;
+				} else if (args[i].equals("-fields") && i + 1 < args.length) {
+					fields = args[++i].split(",");
+				} else if (args[i].equals("-threads") && i + 1 < args.length) {
+					threads = Integer.parseInt(args[++i]);
+				} else {
+					roots.add(Paths.get(args[i]));
+				}
+			}
+
+		} catch (NumberFormatException e) {
+			roots.clear();
+		}
+
+		if (roots.isEmpty() || threads < 1) {
+			System.err.println("Usage: ADACQuery [-json] [-threads n] [-fields FIELD,FIELD,...] <directory> ...");
+			System.exit(1);
+		}
+
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+
+			ADACQuery query = new ADACQuery(fields, json, out);
+
+			long start = System.nanoTime();
+			query.run(roots, pool);
+			out.flush();
+
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.err.printf("Read %d headers (%d skipped) in %.1f s: %.0f files/s%n", query.getFilesRead(),
+					query.getFilesSkipped(), seconds, (query.getFilesRead() + query.getFilesSkipped()) / seconds);
+
+		} catch (IllegalArgumentException e) {
+			System.err.println("ADACQuery: " + e.getMessage());
+			System.exit(1);
+		} catch (IOException e) {
+			System.err.println("ADACQuery: " + e.getMessage());
+			System.exit(1);
+		} finally {
+			pool.shutdown();
+		}
+
+	}
+
+	/**
+	 * Print the header fields of every ADAC object under some directories.
+	 * Rows are printed as headers are read, so their order is not fixed.
+	 * Directories and files that cannot be read are reported on stderr,
+	 * counted as skipped and passed over.
+	 *
+	 * @param roots
+	 * @param pool
+	 *            The pool to walk and read on.
+	 * @throws IOException
+	 */
+	public void run(List<Path> roots, ForkJoinPool pool) throws IOException {
+
+		printStart();
+
+		List<Walk> walks = new ArrayList<Walk>();
+		for (Path root : roots) {
+			walks.add(new Walk(root));
+		}
+
+		pool.invoke(new Walks(walks));
+
+		printEnd();
+		out.flush();
+
+	}
+
+	/**
+	 * Get the number of ADAC headers printed.
+	 *
+	 * @return
+	 */
+	public long getFilesRead() {
+		return read.get();
+	}
+
+	/**
+	 * Get the number of files that were not ADAC objects or could not be
+	 * read, and directories that could not be listed.
+	 *
+	 * @return
+	 */
+	public long getFilesSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * Read the header of a file and print its row, or skip it if it is not an
+	 * ADAC object.
+	 */
+	private void query(Path file, long size) {
+
+		if (size < ADACDictionary.IM_OFFSET) {
+			skipped.incrementAndGet();
+			return;
+		}
+
+		ADACHeader header;
+
+		try {
+
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				header = ADACHeader.read(channel);
+			} finally {
+				channel.close();
+			}
+
+		} catch (IOException e) {
+			// Unreadable or truncated since it was listed
+			skipped.incrementAndGet();
+			return;
+		}
+
+		if (!header.getPreamble().equals("adac01") || header.getLabelCount() == 0) {
+			skipped.incrementAndGet();
+			return;
+		}
+
+		String row = json ? formatJson(file, header) : formatCsv(file, header);
+
+		synchronized (this) {
+			if (json) {
+				out.print(first ? "\n" : ",\n");
+			}
+			out.print(row);
+			if (!json) {
+				out.print('\n');
+			}
+			first = false;
+		}
+
+		read.incrementAndGet();
+
+	}
+
+	private void skip(Path path, IOException e) {
+
+		skipped.incrementAndGet();
+		System.err.println("ADACQuery: skipped " + path + ": " + e);
+
+	}
+
+	private void printStart() {
+
+		if (json) {
+			out.print('[');
+			return;
+		}
+
+		StringBuilder sb = new StringBuilder("PATH");
+		for (String name : names) {
+			sb.append(',').append(csv(name));
+		}
+		out.print(sb.append('\n'));
+
+	}
+
+	private void printEnd() {
+
+		if (json) {
+			out.print(first ? "]\n" : "\n]\n");
+		}
+
+	}
+
+	/**
+	 * Get the value of a field, or null if the header does not hold it.
+	 */
+	private String getValue(ADACHeader header, int i) {
+
+		if (keys[i] == 0) {
+			return header.getExtrasBlock().get(extrasKeys[i]);
+		}
+
+		if (!header.hasKey(keys[i])) {
+			return null;
+		}
+
+		if (ADACDictionary.type[keys[i]] == ADACDictionary.BYTE) {
+			return header.getTrimmedString(keys[i]);
+		}
+		return header.getValueString(keys[i]).trim();
+
+	}
+
+	private boolean isNumber(int i) {
+
+		if (keys[i] == 0) {
+			return false;
+		}
+
+		int type = ADACDictionary.type[keys[i]];
+		return type == ADACDictionary.SHORT || type == ADACDictionary.INT || type == ADACDictionary.FLOAT;
+
+	}
+
+	private String formatCsv(Path file, ADACHeader header) {
+
+		StringBuilder sb = new StringBuilder(csv(file.toString()));
+		for (int i = 0; i < names.length; i++) {
+			String value = getValue(header, i);
+			sb.append(',');
+			if (value != null) {
+				sb.append(csv(value));
+			}
+		}
+		return sb.toString();
+
+	}
+
+	private String formatJson(Path file, ADACHeader header) {
+
+		StringBuilder sb = new StringBuilder("  {\"PATH\": ");
+		json(sb, file.toString());
+
+		for (int i = 0; i < names.length; i++) {
+
+			String value = getValue(header, i);
+			sb.append(", ");
+			json(sb, names[i]);
+			sb.append(": ");
+
+			if (value == null) {
+				sb.append("null");
+			} else if (isNumber(i) && isFinite(value)) {
+				sb.append(value);
+			} else {
+				json(sb, value);
+			}
+
+		}
+
+		return sb.append('}').toString();
+
+	}
+
+	private static boolean isFinite(String number) {
+
+		try {
+			double d = Double.parseDouble(number);
+			return !Double.isNaN(d) && !Double.isInfinite(d);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+
+	}
+
+	private static String csv(String value) {
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+				return '"' + value.replace("\"", "\"\"") + '"';
+			}
+		}
+		return value;
+
+	}
+
+	private static void json(StringBuilder sb, String value) {
+
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < ' ') {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+
+	}
+
+	private static class Walks extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final List<Walk> walks;
+
+		Walks(List<Walk> walks) {
+			this.walks = walks;
+		}
+
+		@Override
+		protected void compute() {
+			invokeAll(walks);
+		}
+
+	}
+
+	/**
+	 * Lists one directory, reading its files and forking a walk for each
+	 * subdirectory.
+	 */
+	private class Walk extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path directory;
+
+		Walk(Path directory) {
+			this.directory = directory;
+		}
+
+		@Override
+		protected void compute() {
+
+			List<Walk> subdirectories = new ArrayList<Walk>();
+
+			// An unreadable directory or entry is skipped, not fatal
+			try {
+
+				DirectoryStream<Path> entries = Files.newDirectoryStream(directory);
+				try {
+
+					for (Path entry : entries) {
+
+						BasicFileAttributes attrs;
+						try {
+							attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+						} catch (IOException e) {
+							skip(entry, e);
+							continue;
+						}
+
+						if (attrs.isDirectory()) {
+							Walk walk = new Walk(entry);
+							walk.fork();
+							subdirectories.add(walk);
+						} else if (attrs.isRegularFile()) {
+							query(entry, attrs.size());
+						}
+
+					}
+
+				} finally {
+					entries.close();
+				}
+
+			} catch (IOException e) {
+				skip(directory, e);
+			} catch (DirectoryIteratorException e) {
+				skip(directory, e.getCause());
+			}
+
+			for (Walk walk : subdirectories) {
+				walk.join();
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,904 @@
+package ADAC;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Reconstructs transaxial slices from SPECT projections by filtered
+ * back-projection or OSEM, so archived studies can be reconstructed without
+ * the vendor workstation. Each row of the projections is a sinogram for one
+ * slice, and slices are reconstructed in parallel on a {@link ForkJoinPool}.
+ *
+ * The geometry and filter come from the header:
+ * {@link ADACDictionary#STARTING_ANGLE},
+ * {@link ADACDictionary#DEGREES_OF_ROTATION},
+ * {@link ADACDictionary#DIRECTION_OF_ROTATION},
+ * {@link ADACDictionary#AXIS_OF_ROTATION_CORR} (taken as a shift in pixels),
+ * {@link ADACDictionary#FILTER_TYPE}, {@link ADACDictionary#FILTER_ORDER},
+ * {@link ADACDictionary#CUTOFF_FREQUENCY} (taken as cycles per pixel) and
+ * {@link ADACDictionary#ATTENUATION_COEFFICIENT} (per cm). Any of them can be
+ * overridden before the first reconstruction.
+ *
+ * Sine and cosine tables, the detector bin and weight of every pixel at every
+ * angle, and the filter kernel are worked out once, on the first
+ * reconstruction, and shared by every slice and every later reconstruction
+ * with the same reconstructor. Attenuation is corrected by Chang's first-order
+ * method, over a body outline fitted to each reconstruction.
+ *
+ * The intervals of gated SPECT are reconstructed side by side with
+ * {@link #reconstructGated(ADACFrameSource, ForkJoinPool)}, all sharing the
+ * same tables.
+ *
+ * @author neil
+ *
+ */
+public class ADACReconstructor {
+
+	/**
+	 * Reconstruction methods.
+	 */
+	public enum Method {
+		FBP, OSEM
+	}
+
+	public static final int DEFAULT_ITERATIONS = 4;
+	public static final int DEFAULT_SUBSETS = 8;
+
+	// Pixels below this fraction of the maximum are outside the body when
+	// fitting the outline for attenuation correction
+	private static final float OUTLINE_THRESHOLD = 0.1f;
+
+	// Smallest forward projection divided into in OSEM
+	private static final float EPSILON = 1e-6f;
+
+	private final int bins;
+	private final int rows;
+	private final int angles;
+	private final int intervals;
+	private final short bitDepth;
+	private final int bytesPerPixel;
+
+	private float startingAngle;
+	private float degreesOfRotation;
+	private float centreOfRotation;
+	private String filterType;
+	private int filterOrder;
+	private float cutoff;
+	private float attenuation;
+	private float pixelSize;
+
+	private Method method = Method.FBP;
+	private int iterations = DEFAULT_ITERATIONS;
+	private int subsets = DEFAULT_SUBSETS;
+
+	// Worked out on the first reconstruction
+	private volatile Tables tables;
+
+	/**
+	 * Create a reconstructor for the projections of a SPECT acquisition.
+	 *
+	 * @param ad
+	 *            The decoded header of the acquisition. For gated SPECT each
+	 *            interval is one set of projections.
+	 */
+	public ADACReconstructor(ADACDecoder ad) {
+
+		ADACHeader header = ad.getHeader();
+
+		bins = header.getWidth();
+		rows = header.getHeight();
+		angles = header.getFramesPerInterval();
+		intervals = header.isGated() ? Math.max(1, (int) header.getNumberOfGatedIntervals()) : 1;
+		bitDepth = header.getBitDepth();
+		bytesPerPixel = header.getBytesPerPixel();
+
+		if (bins < 4 || rows < 1 || angles < 2) {
+			throw new IllegalArgumentException("Not a set of SPECT projections: " + angles + " of " + bins + "x"
+					+ rows);
+		}
+
+		startingAngle = header.getShort(ADACDictionary.STARTING_ANGLE);
+		degreesOfRotation = header.getShort(ADACDictionary.DEGREES_OF_ROTATION);
+		if (degreesOfRotation == 0) {
+			degreesOfRotation = 360;
+		}
+		if (header.getTrimmedString(ADACDictionary.DIRECTION_OF_ROTATION).equals("-")) {
+			degreesOfRotation = -degreesOfRotation;
+		}
+		centreOfRotation = header.getShort(ADACDictionary.AXIS_OF_ROTATION_CORR);
+
+		filterType = header.getTrimmedString(ADACDictionary.FILTER_TYPE);
+		filterOrder = header.getShort(ADACDictionary.FILTER_ORDER);
+		cutoff = header.getFloat(ADACDictionary.CUTOFF_FREQUENCY);
+		attenuation = header.getFloat(ADACDictionary.ATTENUATION_COEFFICIENT);
+		pixelSize = ad.getPixelSize();
+
+	}
+
+	/**
+	 * Set the reconstruction method. The default is filtered back-projection.
+	 *
+	 * @param method
+	 */
+	public void setMethod(Method method) {
+		this.method = method;
+	}
+
+	/**
+	 * Set the OSEM iterations and subsets. Angles are shared between subsets
+	 * in turn.
+	 *
+	 * @param iterations
+	 * @param subsets
+	 */
+	public void setOSEM(int iterations, int subsets) {
+
+		if (iterations < 1 || subsets < 1) {
+			throw new IllegalArgumentException("OSEM needs at least one iteration and subset");
+		}
+		this.iterations = iterations;
+		this.subsets = Math.min(subsets, angles);
+
+	}
+
+	/**
+	 * Set the window applied with the ramp filter in filtered back-projection.
+	 *
+	 * @param type
+	 *            Butterworth, Hann, Hamming or Shepp-Logan; anything else for
+	 *            the ramp alone.
+	 * @param order
+	 *            The order of a Butterworth filter.
+	 * @param cutoff
+	 *            Cut-off frequency in cycles per pixel; 0 for Nyquist.
+	 */
+	public void setFilter(String type, int order, float cutoff) {
+
+		checkNotStarted();
+		filterType = type;
+		filterOrder = order;
+		this.cutoff = cutoff;
+
+	}
+
+	/**
+	 * Set the attenuation correction.
+	 *
+	 * @param coefficient
+	 *            Linear attenuation coefficient per cm; 0 for none.
+	 * @param pixelSize
+	 *            Pixel size in mm.
+	 */
+	public void setAttenuation(float coefficient, float pixelSize) {
+
+		attenuation = coefficient;
+		this.pixelSize = pixelSize;
+
+	}
+
+	/**
+	 * Set the orbit.
+	 *
+	 * @param startingAngle
+	 *            Angle of the first projection in degrees.
+	 * @param degreesOfRotation
+	 *            Arc covered by the projections in degrees; negative for the
+	 *            opposite direction.
+	 * @param centreOfRotation
+	 *            Shift of the axis of rotation from the centre of the detector,
+	 *            in pixels.
+	 */
+	public void setOrbit(float startingAngle, float degreesOfRotation, float centreOfRotation) {
+
+		checkNotStarted();
+		this.startingAngle = startingAngle;
+		this.degreesOfRotation = degreesOfRotation;
+		this.centreOfRotation = centreOfRotation;
+
+	}
+
+	/**
+	 * Get the width and height of each slice in pixels.
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return bins;
+	}
+
+	/**
+	 * Get the number of slices, one per row of the projections.
+	 *
+	 * @return
+	 */
+	public int getSliceCount() {
+		return rows;
+	}
+
+	/**
+	 * Get the number of gated intervals, each a set of projections; 1 for
+	 * SPECT that is not gated.
+	 *
+	 * @return
+	 */
+	public int getIntervalCount() {
+		return intervals;
+	}
+
+	/**
+	 * Get the number of projections in each set.
+	 *
+	 * @return
+	 */
+	public int getAngleCount() {
+		return angles;
+	}
+
+	/**
+	 * Reconstruct a set of projections.
+	 *
+	 * @param projections
+	 *            The frames of the acquisition.
+	 * @param firstFrame
+	 *            Zero-based frame index of the first projection; the start of
+	 *            the interval for gated SPECT.
+	 * @param pool
+	 *            The pool to reconstruct slices on.
+	 * @return One array of {@link #getSize()} squared pixels per slice.
+	 */
+	public float[][] reconstruct(ADACFrameSource projections, int firstFrame, ForkJoinPool pool) {
+
+		if (firstFrame < 0 || firstFrame + angles > projections.getFrameCount()) {
+			throw new IndexOutOfBoundsException("Projections " + firstFrame + " to " + (firstFrame + angles - 1)
+					+ " of " + projections.getFrameCount());
+		}
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		SetTask task = new SetTask(getTables(), projections, firstFrame);
+		pool.invoke(task);
+
+		metrics.stop(ADACMetrics.Stage.STACK_BUILD, start, 0);
+
+		return task.slices;
+
+	}
+
+	/**
+	 * Reconstruct every interval of a gated SPECT acquisition. Intervals are
+	 * independent tasks, and their slices are split further, so all of the
+	 * pool's threads are kept busy whatever the number of gates. Every
+	 * interval shares the same tables.
+	 *
+	 * @param projections
+	 *            The frames of the acquisition, interval by interval.
+	 * @param pool
+	 *            The pool to reconstruct on.
+	 * @return The slices of each interval.
+	 */
+	public float[][][] reconstructGated(ADACFrameSource projections, ForkJoinPool pool) {
+
+		if ((long) intervals * angles > projections.getFrameCount()) {
+			throw new IndexOutOfBoundsException(intervals + " intervals of " + angles + " projections but "
+					+ projections.getFrameCount() + " frames");
+		}
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		Tables t = getTables();
+		final SetTask[] tasks = new SetTask[intervals];
+		for (int i = 0; i < intervals; i++) {
+			tasks[i] = new SetTask(t, projections, i * angles);
+		}
+
+		pool.invoke(new RecursiveAction() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+
+		});
+
+		float[][][] volumes = new float[intervals][][];
+		for (int i = 0; i < intervals; i++) {
+			volumes[i] = tasks[i].slices;
+		}
+
+		metrics.stop(ADACMetrics.Stage.STACK_BUILD, start, 0);
+
+		return volumes;
+
+	}
+
+	/**
+	 * Reconstruct every interval of a gated SPECT acquisition into a
+	 * hyperstack of slices by intervals, as the importer shows a gated
+	 * reconstruction.
+	 *
+	 * @param title
+	 * @param projections
+	 *            The frames of the acquisition, interval by interval.
+	 * @param pool
+	 *            The pool to reconstruct on.
+	 * @return
+	 */
+	public ImagePlus getHyperStack(String title, ADACFrameSource projections, ForkJoinPool pool) {
+
+		float[][][] volumes = reconstructGated(projections, pool);
+
+		// ImageJ orders a hyperstack's slices within each frame
+		ImageStack stack = new ImageStack(bins, bins);
+		for (float[][] volume : volumes) {
+			for (float[] slice : volume) {
+				stack.addSlice(null, slice);
+			}
+		}
+
+		ImagePlus imp = new ImagePlus();
+		imp.setStack(title, stack);
+		if (intervals > 1) {
+			imp.setDimensions(1, rows, intervals);
+			imp.setOpenAsHyperStack(true);
+		}
+		return imp;
+
+	}
+
+	/**
+	 * Reconstruct a set of projections into an ImageJ stack.
+	 *
+	 * @param projections
+	 *            The frames of the acquisition.
+	 * @param firstFrame
+	 *            Zero-based frame index of the first projection.
+	 * @param pool
+	 *            The pool to reconstruct slices on.
+	 * @return
+	 */
+	public ImageStack getStack(ADACFrameSource projections, int firstFrame, ForkJoinPool pool) {
+
+		float[][] slices = reconstruct(projections, firstFrame, pool);
+
+		ImageStack stack = new ImageStack(bins, bins);
+		for (float[] slice : slices) {
+			stack.addSlice(null, slice);
+		}
+		return stack;
+
+	}
+
+	private void checkNotStarted() {
+
+		if (tables != null) {
+			throw new IllegalStateException("The geometry and filter cannot change after the first reconstruction");
+		}
+
+	}
+
+	private Tables getTables() {
+
+		Tables t = tables;
+		if (t == null) {
+			synchronized (this) {
+				t = tables;
+				if (t == null) {
+					t = new Tables();
+					tables = t;
+				}
+			}
+		}
+		return t;
+
+	}
+
+	/**
+	 * Scale each slice by Chang's first-order correction for a uniform
+	 * attenuator filling a circle fitted to the summed slices.
+	 */
+	private void correctAttenuation(Tables t, float[][] slices) {
+
+		int n = bins * bins;
+		float[] sum = new float[n];
+		for (float[] slice : slices) {
+			for (int i = 0; i < n; i++) {
+				sum[i] += slice[i];
+			}
+		}
+
+		float max = 0;
+		for (int i = 0; i < n; i++) {
+			max = Math.max(max, sum[i]);
+		}
+		if (max <= 0) {
+			return;
+		}
+
+		// Centre and radius of a circle of the same area as the body
+		double area = 0, cx = 0, cy = 0;
+		for (int i = 0; i < n; i++) {
+			if (sum[i] > OUTLINE_THRESHOLD * max) {
+				area++;
+				cx += i % bins;
+				cy += i / bins;
+			}
+		}
+		cx /= area;
+		cy /= area;
+		double radius2 = area / Math.PI;
+
+		// Per pixel of the slice, as pixel size is in mm
+		double mu = attenuation * pixelSize / 10;
+
+		float[] factors = new float[n];
+		for (int k = 0; k < t.pixels.length; k++) {
+
+			int p = t.pixels[k];
+			double dx = p % bins - cx;
+			double dy = p / bins - cy;
+			double c = dx * dx + dy * dy - radius2;
+			if (c >= 0) {
+				factors[p] = 1;
+				continue;
+			}
+
+			// Mean transmission from the pixel to the edge of the body
+			// towards the detector, over every angle
+			double transmission = 0;
+			for (int a = 0; a < angles; a++) {
+				double b = -dx * t.sin[a] + dy * t.cos[a];
+				transmission += Math.exp(-mu * (-b + Math.sqrt(b * b - c)));
+			}
+			factors[p] = (float) (angles / transmission);
+
+		}
+
+		for (float[] slice : slices) {
+			for (int i = 0; i < n; i++) {
+				slice[i] *= factors[i];
+			}
+		}
+
+	}
+
+	/**
+	 * Read the row of every projection that forms the sinogram of a slice.
+	 */
+	private float[] readSinogram(ADACFrameSource projections, int firstFrame, int row) {
+
+		float[] sinogram = new float[angles * bins];
+		float[] line = new float[bins];
+
+		for (int a = 0; a < angles; a++) {
+
+			ByteBuffer frame = projections.getFrame(firstFrame + a);
+			frame.position(frame.position() + row * bins * bytesPerPixel);
+			ADACFrameDecoder.getValues(frame, bitDepth, line, bins);
+			System.arraycopy(line, 0, sinogram, a * bins, bins);
+
+		}
+
+		return sinogram;
+
+	}
+
+	/**
+	 * Everything that depends only on the geometry and filter.
+	 */
+	private class Tables {
+
+		final double[] sin = new double[angles];
+		final double[] cos = new double[angles];
+
+		// Pixels of a slice inside the reconstruction circle
+		final int[] pixels;
+
+		// Lower detector bin, and its weight, of each pixel at each angle,
+		// by angle then pixel
+		final int[] bin;
+		final float[] weight;
+
+		// Frequency response of the ramp and window, and FFT tables
+		final int fftLength;
+		final double[] kernel;
+		final double[] twiddleCos;
+		final double[] twiddleSin;
+		final int[] reversed;
+
+		Tables() {
+
+			for (int a = 0; a < angles; a++) {
+				double theta = Math.toRadians(startingAngle + a * degreesOfRotation / angles);
+				sin[a] = Math.sin(theta);
+				cos[a] = Math.cos(theta);
+			}
+
+			// Keep every pixel that projects onto two bins at every angle
+			double centre = (bins - 1) / 2.0;
+			double radius = centre - Math.abs(centreOfRotation) - 1;
+
+			int[] inside = new int[bins * bins];
+			int count = 0;
+			for (int y = 0; y < bins; y++) {
+				for (int x = 0; x < bins; x++) {
+					double dx = x - centre;
+					double dy = y - centre;
+					if (dx * dx + dy * dy <= radius * radius) {
+						inside[count++] = y * bins + x;
+					}
+				}
+			}
+			pixels = new int[count];
+			System.arraycopy(inside, 0, pixels, 0, count);
+
+			bin = new int[angles * count];
+			weight = new float[angles * count];
+			for (int a = 0; a < angles; a++) {
+				for (int k = 0; k < count; k++) {
+
+					double dx = pixels[k] % bins - centre;
+					double dy = pixels[k] / bins - centre;
+					double t = dx * cos[a] + dy * sin[a] + centre + centreOfRotation;
+					int lower = (int) Math.floor(t);
+
+					bin[a * count + k] = lower;
+					weight[a * count + k] = (float) (1 - (t - lower));
+
+				}
+			}
+
+			// Zero padded to at least twice the row, to avoid wrap-around
+			int length = 1;
+			while (length < 2 * bins) {
+				length <<= 1;
+			}
+			fftLength = length;
+
+			twiddleCos = new double[length / 2];
+			twiddleSin = new double[length / 2];
+			for (int i = 0; i < length / 2; i++) {
+				twiddleCos[i] = Math.cos(2 * Math.PI * i / length);
+				twiddleSin[i] = Math.sin(2 * Math.PI * i / length);
+			}
+
+			reversed = new int[length];
+			int bits = Integer.numberOfTrailingZeros(length);
+			for (int i = 0; i < length; i++) {
+				reversed[i] = Integer.reverse(i) >>> (32 - bits);
+			}
+
+			kernel = makeKernel();
+
+		}
+
+		/**
+		 * The ramp filter from its band-limited spatial form, so the zero
+		 * frequency is right, times the window.
+		 */
+		private double[] makeKernel() {
+
+			double[] re = new double[fftLength];
+			double[] im = new double[fftLength];
+
+			re[0] = 0.25;
+			for (int i = 1; i < fftLength / 2; i += 2) {
+				re[i] = re[fftLength - i] = -1 / (Math.PI * Math.PI * i * i);
+			}
+			fft(re, im, false);
+
+			double fc = cutoff > 0 && cutoff < 0.5 ? cutoff : 0.5;
+			String type = filterType == null ? "" : filterType.toUpperCase();
+
+			for (int i = 0; i < fftLength; i++) {
+
+				// Frequency in cycles per pixel
+				double f = (double) Math.min(i, fftLength - i) / fftLength;
+				double window;
+
+				if (type.startsWith("BUTT")) {
+					window = 1 / Math.sqrt(1 + Math.pow(f / fc, 2 * Math.max(1, filterOrder)));
+				} else if (type.startsWith("HANN")) {
+					window = f < fc ? 0.5 * (1 + Math.cos(Math.PI * f / fc)) : 0;
+				} else if (type.startsWith("HAMM")) {
+					window = f < fc ? 0.54 + 0.46 * Math.cos(Math.PI * f / fc) : 0;
+				} else if (type.startsWith("SHEPP")) {
+					double x = Math.PI * f / (2 * fc);
+					window = f < fc ? (x == 0 ? 1 : Math.sin(x) / x) : 0;
+				} else {
+					window = f <= fc ? 1 : 0;
+				}
+
+				re[i] *= window;
+
+			}
+
+			return re;
+
+		}
+
+		/**
+		 * In-place radix-2 FFT of length {@link #fftLength}. The inverse is not
+		 * scaled.
+		 */
+		void fft(double[] re, double[] im, boolean inverse) {
+
+			int n = fftLength;
+
+			for (int i = 0; i < n; i++) {
+				int j = reversed[i];
+				if (j > i) {
+					double tr = re[i];
+					re[i] = re[j];
+					re[j] = tr;
+					double ti = im[i];
+					im[i] = im[j];
+					im[j] = ti;
+				}
+			}
+
+			for (int size = 2; size <= n; size <<= 1) {
+
+				int half = size / 2;
+				int step = n / size;
+
+				for (int i = 0; i < n; i += size) {
+					for (int j = 0; j < half; j++) {
+
+						double wr = twiddleCos[j * step];
+						double wi = inverse ? twiddleSin[j * step] : -twiddleSin[j * step];
+
+						int a = i + j;
+						int b = a + half;
+						double xr = re[b] * wr - im[b] * wi;
+						double xi = re[b] * wi + im[b] * wr;
+
+						re[b] = re[a] - xr;
+						im[b] = im[a] - xi;
+						re[a] += xr;
+						im[a] += xi;
+
+					}
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Reconstructs one set of projections, then corrects it for attenuation.
+	 */
+	private class SetTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Tables t;
+		private final ADACFrameSource projections;
+		private final int firstFrame;
+		final float[][] slices = new float[rows][];
+
+		SetTask(Tables t, ADACFrameSource projections, int firstFrame) {
+
+			this.t = t;
+			this.projections = projections;
+			this.firstFrame = firstFrame;
+
+		}
+
+		@Override
+		protected void compute() {
+
+			new SliceTask(t, projections, firstFrame, slices, 0, rows).invoke();
+
+			if (attenuation > 0 && pixelSize > 0) {
+				correctAttenuation(t, slices);
+			}
+
+		}
+
+	}
+
+	/**
+	 * Reconstructs a range of slices, splitting it until one slice is left.
+	 */
+	private class SliceTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Tables t;
+		private final ADACFrameSource projections;
+		private final int firstFrame;
+		private final float[][] slices;
+		private final int from;
+		private final int to;
+
+		SliceTask(Tables t, ADACFrameSource projections, int firstFrame, float[][] slices, int from, int to) {
+
+			this.t = t;
+			this.projections = projections;
+			this.firstFrame = firstFrame;
+			this.slices = slices;
+			this.from = from;
+			this.to = to;
+
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new SliceTask(t, projections, firstFrame, slices, from, mid),
+						new SliceTask(t, projections, firstFrame, slices, mid, to));
+				return;
+			}
+
+			float[] sinogram = readSinogram(projections, firstFrame, from);
+
+			// Rows outside the patient reconstruct to nothing
+			boolean empty = true;
+			for (int i = 0; i < sinogram.length && empty; i++) {
+				empty = sinogram[i] == 0;
+			}
+
+			if (empty) {
+				slices[from] = new float[bins * bins];
+			} else {
+				slices[from] = method == Method.OSEM ? osem(sinogram) : fbp(sinogram);
+			}
+
+		}
+
+		private float[] fbp(float[] sinogram) {
+
+			filter(sinogram);
+
+			int count = t.pixels.length;
+			float[] values = new float[count];
+
+			for (int a = 0; a < angles; a++) {
+
+				int offset = a * bins;
+				int row = a * count;
+				for (int k = 0; k < count; k++) {
+					int b = offset + t.bin[row + k];
+					float w = t.weight[row + k];
+					values[k] += sinogram[b] * w + sinogram[b + 1] * (1 - w);
+				}
+
+			}
+
+			// Each line is seen once over 180 degrees and twice over 360, so
+			// both come to pi over the number of angles
+			return toSlice(values, (float) (Math.PI / angles));
+
+		}
+
+		/**
+		 * Apply the kernel to every row of the sinogram, two rows per FFT.
+		 */
+		private void filter(float[] sinogram) {
+
+			int n = t.fftLength;
+			double[] re = new double[n];
+			double[] im = new double[n];
+			double scale = 1.0 / n;
+
+			for (int a = 0; a < angles; a += 2) {
+
+				boolean pair = a + 1 < angles;
+
+				Arrays.fill(re, 0);
+				Arrays.fill(im, 0);
+				for (int i = 0; i < bins; i++) {
+					re[i] = sinogram[a * bins + i];
+					if (pair) {
+						im[i] = sinogram[(a + 1) * bins + i];
+					}
+				}
+
+				// The kernel is real and even, so the two rows stay apart
+				t.fft(re, im, false);
+				for (int i = 0; i < n; i++) {
+					re[i] *= t.kernel[i];
+					im[i] *= t.kernel[i];
+				}
+				t.fft(re, im, true);
+
+				for (int i = 0; i < bins; i++) {
+					sinogram[a * bins + i] = (float) (re[i] * scale);
+					if (pair) {
+						sinogram[(a + 1) * bins + i] = (float) (im[i] * scale);
+					}
+				}
+
+			}
+
+		}
+
+		private float[] osem(float[] sinogram) {
+
+			int count = t.pixels.length;
+
+			// Start from a uniform image with the mean counts per angle
+			double total = 0;
+			for (float v : sinogram) {
+				total += v;
+			}
+			float initial = (float) Math.max(EPSILON, total / angles / count);
+
+			float[] values = new float[count];
+			Arrays.fill(values, initial);
+
+			float[] forward = new float[bins];
+			float[] back = new float[count];
+
+			for (int it = 0; it < iterations; it++) {
+				for (int s = 0; s < subsets; s++) {
+
+					Arrays.fill(back, 0);
+					int used = 0;
+
+					for (int a = s; a < angles; a += subsets) {
+
+						int offset = a * bins;
+						int row = a * count;
+
+						Arrays.fill(forward, 0);
+						for (int k = 0; k < count; k++) {
+							int b = t.bin[row + k];
+							float w = t.weight[row + k];
+							forward[b] += values[k] * w;
+							forward[b + 1] += values[k] * (1 - w);
+						}
+
+						for (int b = 0; b < bins; b++) {
+							forward[b] = forward[b] > EPSILON ? sinogram[offset + b] / forward[b] : 0;
+						}
+
+						for (int k = 0; k < count; k++) {
+							int b = t.bin[row + k];
+							float w = t.weight[row + k];
+							back[k] += forward[b] * w + forward[b + 1] * (1 - w);
+						}
+
+						used++;
+
+					}
+
+					// Every pixel sees every angle with weights summing to
+					// one, so the sensitivity is the number of angles used
+					for (int k = 0; k < count; k++) {
+						values[k] *= back[k] / used;
+					}
+
+				}
+			}
+
+			return toSlice(values, 1);
+
+		}
+
+		private float[] toSlice(float[] values, float scale) {
+
+			float[] slice = new float[bins * bins];
+			for (int k = 0; k < values.length; k++) {
+				slice[t.pixels[k]] = values[k] * scale;
+			}
+			return slice;
+
+		}
+
+	}
+
+}
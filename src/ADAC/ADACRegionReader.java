@@ -0,0 +1,227 @@
+package ADAC;
+
+import java.awt.Rectangle;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import ij.ImageStack;
+
+/**
+ * Reads a rectangular region of a range of frames straight from an ADAC
+ * file, such as a kidney or thyroid ROI of a whole-body study, without
+ * reading the rest of each frame. Each row of the region is fetched with a
+ * positional read from an offset worked out from the image offset, width and
+ * bit depth; where the region spans whole rows, each frame (or the whole
+ * range, for whole frames) is fetched with one read.
+ *
+ * The channel is only read with positional reads, so one reader may be used
+ * from several threads, and its position is left alone.
+ *
+ * @author neil
+ *
+ */
+public class ADACRegionReader {
+
+	private final FileChannel channel;
+	private final long imageOffset;
+	private final int width;
+	private final int height;
+	private final short bitDepth;
+	private final int bytesPerPixel;
+	private final int frameSize;
+	private final int frameCount;
+
+	/**
+	 * Create a reader over the file a decoder was opened on.
+	 *
+	 * @param ad
+	 * @throws IllegalArgumentException
+	 *             if the decoder was opened on a stream.
+	 */
+	public ADACRegionReader(ADACDecoder ad) {
+		this(ad.getChannel(), ad.getHeader());
+	}
+
+	/**
+	 * Create a reader over an open channel. The channel belongs to the caller.
+	 *
+	 * @param channel
+	 *            Channel open on the ADAC object.
+	 * @param header
+	 *            The decoded header of the object.
+	 */
+	public ADACRegionReader(FileChannel channel, ADACHeader header) {
+
+		if (channel == null) {
+			throw new IllegalArgumentException("Regions can only be read from a file");
+		}
+
+		this.channel = channel;
+		imageOffset = header.getImageOffset();
+		width = header.getWidth();
+		height = header.getHeight();
+		bitDepth = header.getBitDepth();
+		bytesPerPixel = header.getBytesPerPixel();
+		frameSize = header.getFrameSize();
+		frameCount = header.getNumberOfImages();
+
+	}
+
+	/**
+	 * Read the raw, big-endian pixels of a region. Frames follow one another
+	 * in the buffer, each as the rows of the region with no padding.
+	 *
+	 * @param region
+	 *            The region, in pixels, which must lie within the frame.
+	 * @param firstFrame
+	 *            Zero-based index of the first frame, in file order.
+	 * @param frames
+	 *            The number of frames to read.
+	 * @return A buffer positioned at the first pixel.
+	 * @throws IOException
+	 *             if the file ends before the last frame.
+	 */
+	public ByteBuffer read(Rectangle region, int firstFrame, int frames) throws IOException {
+
+		check(region, firstFrame, frames);
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		int rowBytes = region.width * bytesPerPixel;
+		ByteBuffer buffer = ByteBuffer.allocate(frames * region.height * rowBytes);
+		long frameStart = imageOffset + (long) firstFrame * frameSize;
+		long skip = ((long) region.y * width + region.x) * bytesPerPixel;
+
+		if (region.width == width && region.height == height) {
+
+			// Whole frames are contiguous
+			readFully(buffer, frameStart);
+
+		} else if (region.width == width) {
+
+			// Whole rows are contiguous within a frame
+			for (int f = 0; f < frames; f++) {
+				buffer.limit(buffer.position() + region.height * rowBytes);
+				readFully(buffer, frameStart + (long) f * frameSize + skip);
+			}
+
+		} else {
+
+			for (int f = 0; f < frames; f++) {
+				long row = frameStart + (long) f * frameSize + skip;
+				for (int r = 0; r < region.height; r++) {
+					buffer.limit(buffer.position() + rowBytes);
+					readFully(buffer, row);
+					row += width * bytesPerPixel;
+				}
+			}
+
+		}
+
+		metrics.stop(ADACMetrics.Stage.PIXEL_IO, start, buffer.capacity());
+
+		buffer.clear();
+		return buffer.order(ByteOrder.BIG_ENDIAN);
+
+	}
+
+	/**
+	 * Read a region of a range of frames as an ImageJ stack, converted as by
+	 * the importer.
+	 *
+	 * @param region
+	 *            The region, in pixels, which must lie within the frame.
+	 * @param firstFrame
+	 *            Zero-based index of the first frame, in file order.
+	 * @param frames
+	 *            The number of frames to read.
+	 * @return
+	 * @throws IOException
+	 */
+	public ImageStack getStack(Rectangle region, int firstFrame, int frames) throws IOException {
+
+		ByteBuffer buffer = read(region, firstFrame, frames);
+		int pixelCount = region.width * region.height;
+
+		ImageStack stack = new ImageStack(region.width, region.height);
+		for (int f = 0; f < frames; f++) {
+			buffer.position(f * pixelCount * bytesPerPixel);
+			stack.addSlice(null, ADACFrameDecoder.getPixels(buffer, pixelCount, bitDepth));
+		}
+		return stack;
+
+	}
+
+	/**
+	 * Read a region of a range of frames as true pixel values, as
+	 * {@link ADACFrameDecoder#getValues(ByteBuffer, short, float[], int)}
+	 * gives them.
+	 *
+	 * @param region
+	 *            The region, in pixels, which must lie within the frame.
+	 * @param firstFrame
+	 *            Zero-based index of the first frame, in file order.
+	 * @param frames
+	 *            The number of frames to read.
+	 * @return One array per frame, each holding the rows of the region.
+	 * @throws IOException
+	 */
+	public float[][] getValues(Rectangle region, int firstFrame, int frames) throws IOException {
+
+		ByteBuffer buffer = read(region, firstFrame, frames);
+		int pixelCount = region.width * region.height;
+
+		float[][] values = new float[frames][pixelCount];
+		for (int f = 0; f < frames; f++) {
+			buffer.position(f * pixelCount * bytesPerPixel);
+			ADACFrameDecoder.getValues(buffer, bitDepth, values[f], pixelCount);
+		}
+		return values;
+
+	}
+
+	/**
+	 * Get the number of frames the header describes.
+	 *
+	 * @return
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	private void check(Rectangle region, int firstFrame, int frames) {
+
+		if (region.x < 0 || region.y < 0 || region.width <= 0 || region.height <= 0
+				|| region.x + region.width > width || region.y + region.height > height) {
+			throw new IndexOutOfBoundsException("Region " + region.x + "," + region.y + " " + region.width + "x"
+					+ region.height + " is not within " + width + "x" + height);
+		}
+
+		if (firstFrame < 0 || frames < 0 || firstFrame + frames > frameCount) {
+			throw new IndexOutOfBoundsException("Frames " + firstFrame + " to " + (firstFrame + frames - 1) + " of "
+					+ frameCount);
+		}
+
+		if ((long) frames * region.width * region.height * bytesPerPixel > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Region too large to read at once");
+		}
+
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new EOFException("ADAC pixel data ends before offset " + (position + buffer.remaining()));
+			}
+			position += n;
+		}
+
+	}
+
+}
@@ -0,0 +1,204 @@
+package ADAC;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ij.ImageStack;
+
+/**
+ * Loads every frame of an ADAC object into an {@link ImageStack}, splitting
+ * the frames into chunks that are read and decoded in parallel on a
+ * {@link ForkJoinPool}. Each frame is read from its own offset, computed from
+ * {@link ADACDecoder#getImageOffset()}, so chunks do not share any state.
+ *
+ * @author neil
+ *
+ */
+public class ADACStackLoader {
+
+	// Aim for chunks of about this many bytes, so small frames are not
+	// scheduled one at a time
+	private static final int CHUNK_BYTES = 1 << 20;
+
+	private ADACStackLoader() {
+	}
+
+	/**
+	 * Load the frames of an object with positional reads from a channel. The
+	 * channel position is not changed.
+	 *
+	 * @param channel
+	 *            Channel open on the ADAC object.
+	 * @param ad
+	 * @param pool
+	 * @return
+	 * @throws IOException
+	 */
+	public static ImageStack load(FileChannel channel, ADACDecoder ad, ForkJoinPool pool) throws IOException {
+
+		int frameSize = ad.getFrameSize();
+		if (frameSize <= 0) {
+			throw new IOException("ADAC object has no pixel data");
+		}
+
+		// Only whole frames that are present in the file
+		long available = Math.max(0, channel.size() - ad.getImageOffset()) / frameSize;
+		int frames = (int) Math.min(ad.getNumberOfImages(), available);
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		Object[] pixels = new Object[frames];
+		run(pool, new DecodeTask(null, channel, ad, pixels, 0, frames, chunkFrames(frameSize)));
+		ImageStack stack = makeStack(ad.getWidth(), ad.getHeight(), pixels);
+
+		metrics.stop(ADACMetrics.Stage.STACK_BUILD, start, 0);
+		return stack;
+
+	}
+
+	/**
+	 * Load the frames of a mapped, in-memory or off-heap object.
+	 *
+	 * @param source
+	 * @param pool
+	 * @return
+	 */
+	public static ImageStack load(ADACFrameSource source, ForkJoinPool pool) {
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		Object[] pixels = new Object[source.getFrameCount()];
+		try {
+			run(pool, new DecodeTask(source, null, null, pixels, 0, pixels.length,
+					chunkFrames(source.getFrameSize())));
+		} catch (IOException e) {
+			// Frame sources do no I/O of their own
+			throw new UncheckedIOException(e);
+		}
+
+		ImageStack stack = makeStack(source.getWidth(), source.getHeight(), pixels);
+
+		metrics.stop(ADACMetrics.Stage.STACK_BUILD, start, 0);
+		return stack;
+
+	}
+
+	private static int chunkFrames(int frameSize) {
+		return Math.max(1, CHUNK_BYTES / Math.max(1, frameSize));
+	}
+
+	private static ImageStack makeStack(int width, int height, Object[] pixels) {
+
+		ImageStack stack = new ImageStack(width, height);
+		for (Object frame : pixels) {
+			stack.addSlice(null, frame);
+		}
+		return stack;
+
+	}
+
+	private static void run(ForkJoinPool pool, DecodeTask task) throws IOException {
+
+		try {
+			pool.invoke(task);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+	}
+
+	/**
+	 * Decodes a range of frames, splitting it in half until it is no bigger
+	 * than a chunk.
+	 */
+	private static class DecodeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ADACFrameSource source;
+		private final FileChannel channel;
+		private final ADACDecoder ad;
+		private final Object[] pixels;
+		private final int from;
+		private final int to;
+		private final int chunk;
+
+		DecodeTask(ADACFrameSource source, FileChannel channel, ADACDecoder ad, Object[] pixels, int from, int to,
+				int chunk) {
+
+			this.source = source;
+			this.channel = channel;
+			this.ad = ad;
+			this.pixels = pixels;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from > chunk) {
+
+				int mid = (from + to) >>> 1;
+				invokeAll(new DecodeTask(source, channel, ad, pixels, from, mid, chunk),
+						new DecodeTask(source, channel, ad, pixels, mid, to, chunk));
+
+			} else if (source != null) {
+
+				int pixelCount = source.getWidth() * source.getHeight();
+				for (int i = from; i < to; i++) {
+					pixels[i] = ADACFrameDecoder.getPixels(source.getFrame(i), pixelCount, source.getBitDepth());
+				}
+
+			} else {
+
+				try {
+					readFrames();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+
+			}
+
+		}
+
+		private void readFrames() throws IOException {
+
+			int frameSize = ad.getFrameSize();
+			int pixelCount = ad.getWidth() * ad.getHeight();
+			ByteBuffer buffer = ByteBuffer.allocate(frameSize);
+			ADACMetrics metrics = ADACDecoder.getMetrics();
+
+			for (int i = from; i < to; i++) {
+
+				long start = metrics.start();
+				long position = ad.getImageOffset() + (long) i * frameSize;
+
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					int n = channel.read(buffer, position + buffer.position());
+					if (n < 0) {
+						throw new EOFException("ADAC pixel data ends at frame " + i);
+					}
+				}
+				buffer.flip();
+				metrics.stop(ADACMetrics.Stage.PIXEL_IO, start, frameSize);
+
+				pixels[i] = ADACFrameDecoder.getPixels(buffer, pixelCount, ad.getBitDepth());
+
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,346 @@
+package ADAC;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The "adac01" sub-headers that sit between the header and the pixel data of
+ * a gated object, one per interval (gated reconstruction, 128 bytes) or
+ * azimuth (gated SPECT, 1664 bytes). They hold per-interval values such as
+ * counts and timing, for gate rejection QC without touching the pixel data.
+ *
+ * The block is mapped once. Sub-header n starts at a fixed offset, so any one
+ * is found without reading the others, and its key table is only decoded the
+ * first time one of its values is asked for.
+ *
+ * Each sub-header is read as a small ADAC header: the preamble, the number of
+ * labels and a key table of the same form as the main header, with value
+ * offsets counted from the start of the sub-header. Keys whose values would
+ * fall outside the sub-header are ignored. Raw bytes are available through
+ * {@link #getBytes(int)} for anything else.
+ *
+ * @author neil
+ *
+ */
+public class ADACSubHeaders {
+
+	private static final byte[] PREAMBLE = "adac01".getBytes(StandardCharsets.US_ASCII);
+
+	private final ByteBuffer block;
+	private final int size;
+	private final int count;
+
+	// Offset to the value of each key within its sub-header, by key number,
+	// decoded on first use
+	private final AtomicReferenceArray<short[]> offsets;
+
+	/**
+	 * Map the sub-headers of an object from the file its decoder was opened
+	 * on.
+	 *
+	 * @param ad
+	 * @return
+	 * @throws IOException
+	 *             if the decoder was opened on a stream, or the file is
+	 *             shorter than its sub-headers.
+	 */
+	public static ADACSubHeaders map(ADACDecoder ad) throws IOException {
+
+		if (ad.getChannel() == null) {
+			throw new IOException("Sub-headers can only be mapped from a file");
+		}
+		return new ADACSubHeaders(ad.getChannel(), ad.getHeader());
+
+	}
+
+	/**
+	 * Map the sub-headers of an object from an open channel. The channel is
+	 * left open and belongs to the caller; the mapping stays valid once it is
+	 * closed.
+	 *
+	 * @param channel
+	 *            Channel open on the ADAC object.
+	 * @param header
+	 *            The decoded header of the object.
+	 * @throws IOException
+	 *             if the file is shorter than its sub-headers.
+	 */
+	public ADACSubHeaders(FileChannel channel, ADACHeader header) throws IOException {
+		this(map(channel, header), header.getSubHeaderSize(), count(header));
+	}
+
+	/**
+	 * Sub-headers of an object that is already held in memory.
+	 *
+	 * @param data
+	 *            The whole object, positioned at the first header byte.
+	 * @param header
+	 *            The decoded header of the object.
+	 */
+	public ADACSubHeaders(ByteBuffer data, ADACHeader header) {
+		this(slice(data, header), header.getSubHeaderSize(), count(header));
+	}
+
+	private ADACSubHeaders(ByteBuffer block, int size, int count) {
+
+		this.block = block.asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN);
+		this.size = size;
+		this.count = count;
+		offsets = new AtomicReferenceArray<short[]>(count);
+
+	}
+
+	private static int count(ADACHeader header) {
+		return header.getSubHeaderSize() > 0 ? Math.max(0, (int) header.getNumberOfGatedIntervals()) : 0;
+	}
+
+	private static ByteBuffer map(FileChannel channel, ADACHeader header) throws IOException {
+
+		long length = header.getImageOffset() - ADACDictionary.IM_OFFSET;
+		if (channel.size() < header.getImageOffset()) {
+			throw new IOException("ADAC sub-headers truncated");
+		}
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		ByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, ADACDictionary.IM_OFFSET, length);
+
+		metrics.stop(ADACMetrics.Stage.HEADER_READ, start, length);
+		return block;
+
+	}
+
+	private static ByteBuffer slice(ByteBuffer data, ADACHeader header) {
+
+		ByteBuffer block = data.duplicate();
+		block.position(block.position() + ADACDictionary.IM_OFFSET);
+		block.limit(block.position() + header.getImageOffset() - ADACDictionary.IM_OFFSET);
+		return block.slice();
+
+	}
+
+	/**
+	 * Get the number of sub-headers: one per gated interval, or none for data
+	 * that is not gated.
+	 *
+	 * @return
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the size of each sub-header in bytes.
+	 *
+	 * @return
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Check that a sub-header begins with the "adac01" preamble.
+	 *
+	 * @param n
+	 *            Zero-based interval or azimuth.
+	 * @return
+	 */
+	public boolean isValid(int n) {
+
+		int start = start(n);
+		for (int i = 0; i < PREAMBLE.length; i++) {
+			if (block.get(start + i) != PREAMBLE[i]) {
+				return false;
+			}
+		}
+		return true;
+
+	}
+
+	/**
+	 * Get the number of labels a sub-header declares.
+	 *
+	 * @param n
+	 *            Zero-based interval or azimuth.
+	 * @return
+	 */
+	public int getLabelCount(int n) {
+		return block.getShort(start(n) + 6) & 0xffff;
+	}
+
+	/**
+	 * Copy the raw bytes of a sub-header.
+	 *
+	 * @param n
+	 *            Zero-based interval or azimuth.
+	 * @return
+	 */
+	public byte[] getBytes(int n) {
+
+		ByteBuffer view = block.duplicate();
+		view.position(start(n));
+		byte[] bytes = new byte[size];
+		view.get(bytes);
+		return bytes;
+
+	}
+
+	/**
+	 * Check if a sub-header holds a key.
+	 *
+	 * @param n
+	 *            Zero-based interval or azimuth.
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public boolean hasKey(int n, short dictionaryKey) {
+		return dictionaryKey > 0 && dictionaryKey <= ADACDictionary.NUM_KEYS && getOffsets(n)[dictionaryKey] != 0;
+	}
+
+	/**
+	 * Return a short integer value from a sub-header, or zero if the key is
+	 * not present.
+	 *
+	 * @param n
+	 *            Zero-based interval or azimuth.
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public short getShort(int n, short dictionaryKey) {
+		return hasKey(n, dictionaryKey) ? block.getShort(start(n) + getOffsets(n)[dictionaryKey]) : 0;
+	}
+
+	/**
+	 * Return an integer value from a sub-header, or zero if the key is not
+	 * present.
+	 *
+	 * @param n
+	 *            Zero-based interval or azimuth.
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public int getInteger(int n, short dictionaryKey) {
+		return hasKey(n, dictionaryKey) ? block.getInt(start(n) + getOffsets(n)[dictionaryKey]) : 0;
+	}
+
+	/**
+	 * Return a float value from a sub-header, or zero if the key is not
+	 * present.
+	 *
+	 * @param n
+	 *            Zero-based interval or azimuth.
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public float getFloat(int n, short dictionaryKey) {
+		return hasKey(n, dictionaryKey) ? block.getFloat(start(n) + getOffsets(n)[dictionaryKey]) : 0;
+	}
+
+	/**
+	 * Return a string value from a sub-header with the null padding and
+	 * surrounding white space removed, or an empty string if the key is not
+	 * present.
+	 *
+	 * @param n
+	 *            Zero-based interval or azimuth.
+	 * @param dictionaryKey
+	 * @return
+	 */
+	public String getTrimmedString(int n, short dictionaryKey) {
+
+		if (!hasKey(n, dictionaryKey)) {
+			return "";
+		}
+
+		int pos = start(n) + getOffsets(n)[dictionaryKey];
+		byte[] bytes = new byte[ADACDictionary.valLength[dictionaryKey]];
+		int length = 0;
+		while (length < bytes.length && block.get(pos + length) != 0) {
+			bytes[length] = block.get(pos + length);
+			length++;
+		}
+
+		return new String(bytes, 0, length, StandardCharsets.ISO_8859_1).trim();
+
+	}
+
+	/**
+	 * Get the total counts recorded for an interval, from
+	 * {@link ADACDictionary#TOTAL_COUNTS_IN_FRAME}.
+	 *
+	 * @param n
+	 *            Zero-based interval or azimuth.
+	 * @return
+	 */
+	public int getTotalCounts(int n) {
+		return getInteger(n, ADACDictionary.TOTAL_COUNTS_IN_FRAME);
+	}
+
+	/**
+	 * Get the acquisition time recorded for an interval in milliseconds, from
+	 * {@link ADACDictionary#ACQUISITION_TIME}.
+	 *
+	 * @param n
+	 *            Zero-based interval or azimuth.
+	 * @return
+	 */
+	public int getAcquisitionTime(int n) {
+		return getInteger(n, ADACDictionary.ACQUISITION_TIME);
+	}
+
+	private int start(int n) {
+
+		if (n < 0 || n >= count) {
+			throw new IndexOutOfBoundsException("Sub-header " + n + " of " + count);
+		}
+		return n * size;
+
+	}
+
+	/**
+	 * Decode the key table of a sub-header the first time it is used.
+	 * Decoding twice from two threads gives the same table, so whichever is
+	 * kept does not matter.
+	 */
+	private short[] getOffsets(int n) {
+
+		int start = start(n);
+		short[] table = offsets.get(n);
+		if (table != null) {
+			return table;
+		}
+
+		table = new short[ADACDictionary.NUM_KEYS + 1];
+
+		int labels = getLabelCount(n);
+		for (int i = 0; i < labels; i++) {
+
+			int pos = ADACHeader.KEY_TABLE_OFFSET + i * ADACHeader.KEY_LENGTH;
+			if (pos + ADACHeader.KEY_LENGTH > size) {
+				break;
+			}
+
+			short num = block.getShort(start + pos);
+			short offset = block.getShort(start + pos + 4);
+
+			// Values live beyond the key table, within the sub-header
+			if (num <= 0 || num > ADACDictionary.NUM_KEYS || offset < pos + ADACHeader.KEY_LENGTH
+					|| offset + ADACDictionary.valLength[num] > size) {
+				continue;
+			}
+
+			table[num] = offset;
+
+		}
+
+		offsets.set(n, table);
+		return table;
+
+	}
+
+}
@@ -0,0 +1,317 @@
+package ADAC;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time-activity curves of a dynamic study, such as a renogram or a gastric
+ * emptying study, taken over any number of ROIs in one pass over the pixel
+ * data. Frames are streamed from the file and summed under each ROI as they
+ * are read, so the stack is never built.
+ *
+ * The time axis comes from {@link ADACDecoder#getFrameTime()} and the number
+ * of frames from {@link ADACDecoder#getZDim()}.
+ *
+ * <pre>
+ * ADACTimeActivity tac = new ADACTimeActivity(ad);
+ * tac.addRoi("Left kidney", roi.getBounds(), mask);
+ * tac.addRoi("Background", background.getBounds(), null);
+ * tac.measure();
+ * double[] counts = tac.getCounts(0);
+ * </pre>
+ *
+ * @author neil
+ *
+ */
+public class ADACTimeActivity {
+
+	private final ADACDecoder ad;
+	private final int width;
+	private final int height;
+	private final int frameCount;
+	private final double frameTime;
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<int[]> rois = new ArrayList<int[]>();
+	private double[][] counts = new double[0][];
+
+	/**
+	 * Create curves over the frames of a dynamic study.
+	 *
+	 * @param ad
+	 */
+	public ADACTimeActivity(ADACDecoder ad) {
+
+		this.ad = ad;
+		width = ad.getWidth();
+		height = ad.getHeight();
+		frameCount = Math.max(0, Math.min(ad.getZDim(), ad.getNumberOfImages()));
+		frameTime = ad.getFrameTime();
+
+	}
+
+	/**
+	 * Add an ROI given as a mask over the whole frame.
+	 *
+	 * @param name
+	 * @param mask
+	 *            One byte per pixel, row by row; non-zero pixels are inside.
+	 * @return The index of the ROI.
+	 */
+	public int addRoi(String name, byte[] mask) {
+
+		if (mask.length != width * height) {
+			throw new IllegalArgumentException("Mask of " + mask.length + " pixels for a " + width + "x" + height
+					+ " frame");
+		}
+		return addRoi(name, new Rectangle(0, 0, width, height), mask);
+
+	}
+
+	/**
+	 * Add an ROI given as a bounding rectangle and a mask within it, as an
+	 * ImageJ <code>Roi</code> gives them with <code>getBounds()</code> and
+	 * <code>getMask()</code>.
+	 *
+	 * @param name
+	 * @param bounds
+	 *            The bounding rectangle, which must lie within the frame.
+	 * @param mask
+	 *            One byte per pixel of the rectangle, row by row; non-zero
+	 *            pixels are inside. Null for the whole rectangle.
+	 * @return The index of the ROI.
+	 */
+	public int addRoi(String name, Rectangle bounds, byte[] mask) {
+
+		int[] indices = getIndices(name, bounds, mask, width, height);
+
+		names.add(name);
+		rois.add(indices);
+
+		return rois.size() - 1;
+
+	}
+
+	/**
+	 * Get the indices, in file order, of the pixels inside an ROI given as a
+	 * bounding rectangle and a mask within it.
+	 */
+	static int[] getIndices(String name, Rectangle bounds, byte[] mask, int width, int height) {
+
+		if (bounds.x < 0 || bounds.y < 0 || bounds.x + bounds.width > width || bounds.y + bounds.height > height) {
+			throw new IndexOutOfBoundsException("ROI " + name + " is not within " + width + "x" + height);
+		}
+		if (mask != null && mask.length != bounds.width * bounds.height) {
+			throw new IllegalArgumentException("Mask of " + mask.length + " pixels for ROI " + name);
+		}
+
+		// Keep the pixel indices inside the ROI, in file order
+		int[] pixels = new int[bounds.width * bounds.height];
+		int n = 0;
+		for (int y = 0; y < bounds.height; y++) {
+			for (int x = 0; x < bounds.width; x++) {
+				if (mask == null || mask[y * bounds.width + x] != 0) {
+					pixels[n++] = (bounds.y + y) * width + bounds.x + x;
+				}
+			}
+		}
+
+		int[] indices = new int[n];
+		System.arraycopy(pixels, 0, indices, 0, n);
+		return indices;
+
+	}
+
+	/**
+	 * Read every frame of the study once and sum the counts under each ROI.
+	 * The frames are read from the channel or stream the header was read
+	 * from.
+	 *
+	 * @throws IOException
+	 */
+	public void measure() throws IOException {
+
+		ADACFrameIterator frames = ADACFrameIterator.open(ad);
+		reset();
+
+		try {
+
+			while (frames.hasNext()) {
+
+				ADACFrame frame = frames.next();
+				if (frame.getIndex() >= frameCount) {
+					break;
+				}
+				add(frame);
+
+			}
+
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+	}
+
+	/**
+	 * Clear the curves, ready for frames to be added.
+	 */
+	public void reset() {
+		counts = new double[rois.size()][frameCount];
+	}
+
+	/**
+	 * Add the counts of a frame under each ROI. Call {@link #reset()} after
+	 * adding ROIs and before the first frame.
+	 *
+	 * @param frame
+	 */
+	public void add(ADACFrame frame) {
+
+		int index = frame.getIndex();
+		if (index >= frameCount) {
+			return;
+		}
+
+		float[] values = frame.getPixels();
+
+		for (int r = 0; r < counts.length; r++) {
+			counts[r][index] = sum(values, rois.get(r));
+		}
+
+	}
+
+	/**
+	 * Sum the values at a list of pixel indices.
+	 */
+	static double sum(float[] values, int[] indices) {
+
+		double sum = 0;
+		for (int i = 0; i < indices.length; i++) {
+			sum += values[indices[i]];
+		}
+		return sum;
+
+	}
+
+	/**
+	 * Get the number of frames in each curve.
+	 *
+	 * @return
+	 */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/**
+	 * Get the number of ROIs.
+	 *
+	 * @return
+	 */
+	public int getRoiCount() {
+		return rois.size();
+	}
+
+	/**
+	 * Get the name of an ROI.
+	 *
+	 * @param roi
+	 * @return
+	 */
+	public String getRoiName(int roi) {
+		return names.get(roi);
+	}
+
+	/**
+	 * Get the number of pixels in an ROI.
+	 *
+	 * @param roi
+	 * @return
+	 */
+	public int getArea(int roi) {
+		return rois.get(roi).length;
+	}
+
+	/**
+	 * Get the length of each frame in seconds.
+	 *
+	 * @return
+	 */
+	public double getFrameTime() {
+		return frameTime;
+	}
+
+	/**
+	 * Get the time of the middle of each frame in seconds from the start of the
+	 * acquisition, the usual time axis for a curve.
+	 *
+	 * @return
+	 */
+	public double[] getTimes() {
+
+		double[] times = new double[frameCount];
+		for (int i = 0; i < frameCount; i++) {
+			times[i] = (i + 0.5) * frameTime;
+		}
+		return times;
+
+	}
+
+	/**
+	 * Get the counts under an ROI in each frame.
+	 *
+	 * @param roi
+	 * @return
+	 */
+	public double[] getCounts(int roi) {
+		return counts[roi].clone();
+	}
+
+	/**
+	 * Get the count rate under an ROI in each frame, in counts per second.
+	 *
+	 * @param roi
+	 * @return
+	 */
+	public double[] getCountRates(int roi) {
+
+		double[] rates = getCounts(roi);
+		if (frameTime > 0) {
+			for (int i = 0; i < rates.length; i++) {
+				rates[i] /= frameTime;
+			}
+		}
+		return rates;
+
+	}
+
+	/**
+	 * Format the curves as tab separated text: a header row, then one row per
+	 * frame of mid-frame time and the counts under each ROI.
+	 *
+	 * @return
+	 */
+	public String toTable() {
+
+		StringBuilder sb = new StringBuilder("Time (s)");
+		for (String name : names) {
+			sb.append('\t').append(name);
+		}
+		sb.append('\n');
+
+		double[] times = getTimes();
+		for (int i = 0; i < frameCount; i++) {
+			sb.append(times[i]);
+			for (int r = 0; r < counts.length; r++) {
+				sb.append('\t').append(counts[r][i]);
+			}
+			sb.append('\n');
+		}
+
+		return sb.toString();
+
+	}
+
+}
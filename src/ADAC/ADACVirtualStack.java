@@ -0,0 +1,215 @@
+package ADAC;
+
+import java.lang.reflect.Array;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * A virtual stack backed by an {@link ADACFrameSource}. Frames are decoded
+ * from the mapped file, or the off-heap store, only when ImageJ asks for
+ * them, and the most recently viewed frames are kept so that playing a gated
+ * study as a cine, or stepping back and forth through it, does not decode the
+ * same frames again.
+ *
+ * Each cache hit hands out a copy of the cached frame. ImageJ filters, draws
+ * and applies LUTs in place, and those edits must not stick to a frame only
+ * while it happens to be cached.
+ *
+ * Frames are in file order, interval by interval, which is the order ImageJ
+ * expects for a hyperstack of slices and intervals.
+ *
+ * @author neil
+ *
+ */
+public class ADACVirtualStack extends VirtualStack {
+
+	/**
+	 * Memory given to recently viewed frames when no frame count is given.
+	 */
+	public static final int DEFAULT_CACHE_BYTES = 32 << 20;
+
+	private final ADACFrameSource source;
+	private final int framesPerInterval;
+	private final int cacheFrames;
+
+	// Recently decoded frames, least recently used first
+	private final LinkedHashMap<Integer, Object> cache;
+
+	/**
+	 * Create a virtual stack over the frames of an ADAC object that is not
+	 * gated.
+	 *
+	 * @param source
+	 */
+	public ADACVirtualStack(ADACFrameSource source) {
+		this(source, source.getFrameCount(), defaultCacheFrames(source));
+	}
+
+	/**
+	 * Create a virtual stack over the frames of an ADAC object, keeping about {@link #DEFAULT_CACHE_BYTES} of recently viewed frames.
+	 *
+	 * @param source
+	 * @param header
+	 *            The header of the object, for its gated layout.
+	 */
+	public ADACVirtualStack(ADACFrameSource source, ADACHeader header) {
+		this(source, header.getFramesPerInterval(), defaultCacheFrames(source));
+	}
+
+	/**
+	 * Create a virtual stack over the frames of an ADAC object.
+	 *
+	 * @param source
+	 * @param framesPerInterval
+	 *            The number of frames in each gated interval.
+	 * @param cacheFrames
+	 *            The number of recently viewed frames to keep; 0 for none.
+	 */
+	public ADACVirtualStack(ADACFrameSource source, int framesPerInterval, int cacheFrames) {
+
+		super(source.getWidth(), source.getHeight(), null, null);
+		this.source = source;
+		this.framesPerInterval = Math.max(1, framesPerInterval);
+		this.cacheFrames = Math.max(0, cacheFrames);
+
+		// Access order, so the eldest entry is the least recently viewed
+		cache = new LinkedHashMap<Integer, Object>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest) {
+				return size() > ADACVirtualStack.this.cacheFrames;
+			}
+
+		};
+
+	}
+
+	private static int defaultCacheFrames(ADACFrameSource source) {
+		return Math.max(1, DEFAULT_CACHE_BYTES / Math.max(1, source.getFrameSize()));
+	}
+
+	@Override
+	public int getBitDepth() {
+
+		switch (source.getBitDepth()) {
+		case 8:
+			return 8;
+		case 32:
+			return 32;
+		default:
+			return 16;
+		}
+
+	}
+
+	/**
+	 * Decode the pixels of the n'th frame (one-based, as ImageJ counts). The
+	 * array returned belongs to the caller.
+	 */
+	@Override
+	public Object getPixels(int n) {
+
+		Integer index = n - 1;
+		Object pixels;
+
+		synchronized (cache) {
+			pixels = cache.get(index);
+		}
+
+		if (pixels == null) {
+
+			ADACMetrics metrics = ADACDecoder.getMetrics();
+			long start = metrics.start();
+
+			pixels = ADACFrameDecoder.getPixels(source.getFrame(index), source.getWidth() * source.getHeight(),
+					source.getBitDepth());
+
+			metrics.stop(ADACMetrics.Stage.STACK_BUILD, start, 0);
+
+			if (cacheFrames > 0) {
+				synchronized (cache) {
+					cache.put(index, pixels);
+				}
+			}
+
+		}
+
+		// ImageJ may draw on the pixels it is given, so keep the cached copy
+		// clean
+		return cacheFrames > 0 ? copy(pixels) : pixels;
+
+	}
+
+	/**
+	 * Decode the n'th frame (one-based, as ImageJ counts).
+	 */
+	@Override
+	public ImageProcessor getProcessor(int n) {
+		return ADACFrameDecoder.makeProcessor(source.getWidth(), source.getHeight(), getPixels(n));
+	}
+
+	/**
+	 * Decode the frame at a slice and gated interval.
+	 *
+	 * @param position
+	 *            Zero-based slice, projection or frame within the interval.
+	 * @param interval
+	 *            Zero-based gated interval.
+	 * @return
+	 */
+	public ImageProcessor getProcessor(int position, int interval) {
+		return getProcessor(getStackIndex(position, interval));
+	}
+
+	/**
+	 * Get the one-based stack index of the frame at a slice and gated
+	 * interval.
+	 *
+	 * @param position
+	 *            Zero-based slice, projection or frame within the interval.
+	 * @param interval
+	 *            Zero-based gated interval.
+	 * @return
+	 */
+	public int getStackIndex(int position, int interval) {
+
+		int index = interval * framesPerInterval + position;
+		if (position < 0 || position >= framesPerInterval || interval < 0 || index >= getSize()) {
+			throw new IndexOutOfBoundsException("No frame at position " + position + " of interval " + interval);
+		}
+		return index + 1;
+
+	}
+
+	@Override
+	public int getSize() {
+		return source.getFrameCount();
+	}
+
+	@Override
+	public String getSliceLabel(int n) {
+		return null;
+	}
+
+	/**
+	 * Pixel data is read-only; changes are not written back to the file.
+	 */
+	@Override
+	public void setPixels(Object pixels, int n) {
+	}
+
+	private static Object copy(Object pixels) {
+
+		int length = Array.getLength(pixels);
+		Object copy = Array.newInstance(pixels.getClass().getComponentType(), length);
+		System.arraycopy(pixels, 0, copy, 0, length);
+		return copy;
+
+	}
+
+}
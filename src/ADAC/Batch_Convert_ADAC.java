@@ -0,0 +1,475 @@
+package ADAC;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Macro;
+import ij.io.FileSaver;
+import ij.plugin.PlugIn;
+
+/**
+ * Headless batch conversion of ADAC objects to TIFF. Every file below the
+ * input directory is passed through a bounded pipeline of read, decode and
+ * write stages, with decoding spread over a pool of threads. The frames of
+ * each object are decoded in parallel on a shared {@link ForkJoinPool}, so a
+ * few large objects keep every thread busy too. Objects over 64MB are mapped
+ * by the decoder rather than read onto the heap. The relative directory
+ * structure is kept in the output directory.
+ *
+ * From the command line:
+ *
+ * <pre>
+ * java -cp ij.jar:ADAC_Utils.jar ADAC.Batch_Convert_ADAC [-threads n] [-v] input output
+ * </pre>
+ *
+ * From a macro:
+ *
+ * <pre>
+ * run("Batch Convert ADAC", "input=/archive output=/export threads=4");
+ * </pre>
+ *
+ * @author neil
+ *
+ */
+public class Batch_Convert_ADAC implements PlugIn {
+
+	// Marks the end of the work in a queue
+	private static final Job END = new Job(null, null);
+
+	// Larger files are mapped by the decoder rather than read onto the heap
+	private static final long READ_LIMIT = 64L << 20;
+
+	private final AtomicInteger converted = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong bytesRead = new AtomicLong();
+
+	private File input;
+	private File output;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private ADACLog logger = new ADACConsoleLog(false);
+	private ForkJoinPool pool;
+
+	public Batch_Convert_ADAC() {
+	}
+
+	/**
+	 * Create a batch converter.
+	 *
+	 * @param input
+	 *            Directory tree holding the ADAC objects.
+	 * @param output
+	 *            Directory to write TIFF files to.
+	 * @param threads
+	 *            The number of decoding threads.
+	 * @param adacLog
+	 */
+	public Batch_Convert_ADAC(File input, File output, int threads, ADACLog adacLog) {
+
+		this.input = input;
+		this.output = output;
+		this.threads = threads > 0 ? threads : 1;
+		logger = adacLog;
+
+	}
+
+	public static void main(String[] args) {
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		boolean verbose = false;
+		List<String> dirs = new ArrayList<String>();
+
+		try {
+
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-threads") && i + 1 < args.length) {
+					threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-v")) {
+					verbose = true;
+				} else {
+					dirs.add(args[i]);
+				}
+			}
+
+		} catch (NumberFormatException e) {
+			dirs.clear();
+		}
+
+		if (dirs.size() != 2) {
+			System.err.println("Usage: Batch_Convert_ADAC [-threads n] [-v] input output");
+			System.exit(1);
+		}
+
+		Batch_Convert_ADAC converter = new Batch_Convert_ADAC(new File(dirs.get(0)), new File(dirs.get(1)), threads,
+				new ADACConsoleLog(verbose));
+
+		try {
+			System.out.println(converter.convert());
+		} catch (Exception e) {
+			System.err.println("Batch_Convert_ADAC: " + e.getMessage());
+			System.exit(1);
+		}
+
+	}
+
+	public void run(String arg) {
+
+		String options = Macro.getOptions();
+
+		if (options != null) {
+
+			input = new File(Macro.getValue(options, "input", ""));
+			output = new File(Macro.getValue(options, "output", ""));
+			String value = Macro.getValue(options, "threads", Integer.toString(threads));
+			try {
+				threads = Math.max(1, Integer.parseInt(value.trim()));
+			} catch (NumberFormatException e) {
+				IJ.error("Batch Convert ADAC", "threads must be a whole number: " + value);
+				return;
+			}
+
+		} else {
+
+			String in = IJ.getDirectory("Choose folder of ADAC objects...");
+			if (in == null) {
+				return;
+			}
+			String out = IJ.getDirectory("Choose output folder...");
+			if (out == null) {
+				return;
+			}
+			input = new File(in);
+			output = new File(out);
+
+		}
+
+		// Report problems in the log window rather than a dialog per file
+		logger = new ADACLog() {
+
+			public void log(String text) {
+				if (IJ.debugMode) {
+					IJ.log(text);
+				}
+			}
+
+			public void error(String title, String text) {
+				IJ.log(title + ": " + text);
+			}
+
+		};
+
+		try {
+			IJ.log(convert());
+		} catch (Exception e) {
+			IJ.error("Batch Convert ADAC", e.getMessage());
+		}
+
+	}
+
+	/**
+	 * Convert every ADAC object below the input directory.
+	 *
+	 * @return A throughput summary.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public String convert() throws IOException, InterruptedException {
+
+		final List<File> files = listFiles(input);
+		final int capacity = threads * 2;
+
+		// Bounded queues hold back the reader when decoding or writing is
+		// slower, which caps the number of objects in memory
+		final BlockingQueue<Job> decodeQueue = new ArrayBlockingQueue<Job>(capacity);
+		final BlockingQueue<Job> writeQueue = new ArrayBlockingQueue<Job>(capacity);
+
+		long start = System.nanoTime();
+
+		// Decoder threads hand the frames of their object to the pool and
+		// wait, so the pool sets the number of threads actually decoding
+		pool = new ForkJoinPool(threads);
+
+		Thread reader = new Thread("ADAC reader") {
+			public void run() {
+				read(files, decodeQueue);
+			}
+		};
+
+		Thread[] decoders = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			decoders[i] = new Thread("ADAC decoder " + i) {
+				public void run() {
+					decode(decodeQueue, writeQueue);
+				}
+			};
+		}
+
+		Thread writer = new Thread("ADAC writer") {
+			public void run() {
+				write(writeQueue);
+			}
+		};
+
+		reader.start();
+		for (Thread decoder : decoders) {
+			decoder.start();
+		}
+		writer.start();
+
+		reader.join();
+		for (Thread decoder : decoders) {
+			decoder.join();
+		}
+		writeQueue.put(END);
+		writer.join();
+		pool.shutdown();
+
+		double seconds = (System.nanoTime() - start) / 1e9;
+		double megabytes = bytesRead.get() / 1e6;
+
+		return String.format("Converted %d of %d files (%d failed) in %.1f s: %.1f files/s, %.1f MB/s",
+				converted.get(), files.size(), failed.get(), seconds, converted.get() / seconds, megabytes / seconds);
+
+	}
+
+	/**
+	 * Read each file onto the heap, or pass it on to be mapped if it is large,
+	 * and queue it for decoding. Whatever happens to a file, the decoders are
+	 * always sent their end markers, or they would wait for ever.
+	 */
+	private void read(List<File> files, BlockingQueue<Job> decodeQueue) {
+
+		try {
+
+			for (File file : files) {
+
+				Job job;
+
+				try {
+
+					if (file.length() > READ_LIMIT) {
+						job = new Job(file, null);
+					} else {
+						ADACMetrics metrics = ADACDecoder.getMetrics();
+						long start = metrics.start();
+						byte[] data = Files.readAllBytes(file.toPath());
+						metrics.stop(ADACMetrics.Stage.PIXEL_IO, start, data.length);
+						metrics.file(file.getPath(), data.length);
+						bytesRead.addAndGet(data.length);
+						job = new Job(file, data);
+					}
+
+				} catch (IOException e) {
+					failed.incrementAndGet();
+					logger.error("Batch_Convert_ADAC", "Unable to read " + file + ": " + e.getMessage());
+					continue;
+				} catch (Throwable e) {
+					failed.incrementAndGet();
+					logger.error("Batch_Convert_ADAC", "Unable to read " + file + ": " + e);
+					continue;
+				}
+
+				decodeQueue.put(job);
+
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			endDecoders(decodeQueue);
+		}
+
+	}
+
+	private void endDecoders(BlockingQueue<Job> decodeQueue) {
+
+		// One end marker for each decoder
+		try {
+			for (int i = 0; i < threads; i++) {
+				decodeQueue.put(END);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+	private void decode(BlockingQueue<Job> decodeQueue, BlockingQueue<Job> writeQueue) {
+
+		try {
+
+			for (Job job = decodeQueue.take(); job != END; job = decodeQueue.take()) {
+
+				try {
+					job.imp = open(job);
+				} catch (IOException e) {
+					failed.incrementAndGet();
+					logger.error("Batch_Convert_ADAC", "Unable to decode " + job.file + ": " + e.getMessage());
+					continue;
+				} catch (Throwable e) {
+					failed.incrementAndGet();
+					logger.error("Batch_Convert_ADAC", "Unable to decode " + job.file + ": " + e);
+					continue;
+				}
+
+				job.data = null;
+				writeQueue.put(job);
+
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+	private void write(BlockingQueue<Job> writeQueue) {
+
+		try {
+
+			for (Job job = writeQueue.take(); job != END; job = writeQueue.take()) {
+
+				File target = new File(output, relativePath(job.file) + ".tif");
+				target.getParentFile().mkdirs();
+
+				boolean ok;
+				try {
+					FileSaver saver = new FileSaver(job.imp);
+					ok = job.imp.getStackSize() > 1 ? saver.saveAsTiffStack(target.getPath())
+							: saver.saveAsTiff(target.getPath());
+				} catch (RuntimeException e) {
+					ok = false;
+				}
+
+				if (ok) {
+					converted.incrementAndGet();
+					logger.log("Wrote " + target);
+				} else {
+					failed.incrementAndGet();
+					logger.error("Batch_Convert_ADAC", "Unable to write " + target);
+				}
+
+			}
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+	}
+
+	/**
+	 * Decode the header and all frames of an object, held in memory or, if it
+	 * was too large to read, mapped from its file.
+	 *
+	 * @param job
+	 * @return
+	 * @throws IOException
+	 */
+	private ImagePlus open(Job job) throws IOException {
+
+		ADACDecoder ad;
+		ADACPixelSource source;
+
+		if (job.data != null) {
+
+			ad = new ADACDecoder(job.file.getParent(), job.file.getName(),
+					new BufferedInputStream(new ByteArrayInputStream(job.data)), logger);
+			checkHeader(ad);
+			source = new ADACPixelSource(ByteBuffer.wrap(job.data), ad);
+
+		} else {
+
+			ad = new ADACDecoder(job.file.getParent() + File.separator, job.file.getName(), logger);
+			try {
+				checkHeader(ad);
+				// The mapping stays valid once the channel is closed
+				source = new ADACPixelSource(ad.getChannel(), ad);
+			} finally {
+				ad.close();
+			}
+			bytesRead.addAndGet(job.file.length());
+
+		}
+
+		if (source.getFrameCount() == 0) {
+			throw new IOException("no pixel data");
+		}
+
+		ImageStack stack = ADACStackLoader.load(source, pool);
+
+		ImagePlus imp = new ImagePlus();
+		Import_ADAC_image.setImage(imp, job.file.getName(), stack, ad);
+		imp.setCalibration(Import_ADAC_image.makeCalibration(ad));
+
+		return imp;
+
+	}
+
+	private static void checkHeader(ADACDecoder ad) throws IOException {
+
+		if (ad.getHeader().getLabelCount() == 0 || ad.getFrameSize() <= 0) {
+			throw new IOException("not an ADAC image file");
+		}
+
+	}
+
+	private String relativePath(File file) {
+		return input.toPath().relativize(file.toPath()).toString();
+	}
+
+	private List<File> listFiles(File root) throws IOException {
+
+		final List<File> files = new ArrayList<File>();
+
+		Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && attrs.size() > ADACDictionary.IM_OFFSET) {
+					files.add(file.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				// An unreadable entry shouldn't stop the rest of the batch
+				logger.error("Batch_Convert_ADAC", "Unable to list " + file + ": " + e);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		return files;
+
+	}
+
+	private static class Job {
+
+		final File file;
+		byte[] data;
+		ImagePlus imp;
+
+		Job(File file, byte[] data) {
+			this.file = file;
+			this.data = data;
+		}
+
+	}
+
+}
@@ -1,5 +1,7 @@
 package ADAC;
 
+import java.nio.charset.StandardCharsets;
+
 public class ByteKvp extends ADACKvp {
 	
 	private String value;
@@ -20,7 +22,7 @@ public class ByteKvp extends ADACKvp {
 	}
 	
 	public void setString(byte[] bytes){
-		value = new String(bytes);
+		value = new String(bytes, StandardCharsets.ISO_8859_1);
 	}
 	
 	public void setString(String value){
@@ -0,0 +1,314 @@
+package ADAC;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The Program Specific ("extras") block of an ADAC header, scanned once at
+ * byte level. Items are null-terminated: a four character key, one separator
+ * byte and the value. Each item is kept as a slice of the header bytes, so
+ * finding a key allocates nothing and a value only becomes a String when it is
+ * read. Values are decoded as ISO-8859-1, one character per byte.
+ *
+ * Items too short to hold a key and a value are skipped. Where a key appears
+ * more than once the last value wins.
+ *
+ * A block never changes once scanned, so it may be shared between threads.
+ * The bytes it was scanned from must not be changed either.
+ *
+ * @author neil
+ *
+ */
+public class ExtrasBlock {
+
+	// Key, separator and at least one character of value
+	private static final int MIN_ITEM = 6;
+	private static final int KEY_LENGTH = 4;
+
+	private final byte[] bytes;
+
+	// Packed key, value offset and value length for each item, in file order
+	private final int[] items;
+	private final int count;
+
+	/**
+	 * Scan a Program Specific block. The array is not copied.
+	 *
+	 * @param bytes
+	 *            Array holding the block
+	 * @param offset
+	 *            Offset of the block within the array
+	 * @param length
+	 *            Length of the block
+	 */
+	public ExtrasBlock(byte[] bytes, int offset, int length) {
+
+		ADACMetrics metrics = ADACDecoder.getMetrics();
+		long start = metrics.start();
+
+		this.bytes = bytes;
+		int end = offset + length;
+
+		// Blank space before the first item is not part of it
+		int pos = offset;
+		while (pos < end && (bytes[pos] & 0xff) <= ' ' && bytes[pos] != 0) {
+			pos++;
+		}
+
+		int[] found = new int[3 * (length / MIN_ITEM + 1)];
+		int n = 0;
+
+		while (pos < end) {
+
+			int stop = pos;
+			while (stop < end && bytes[stop] != 0) {
+				stop++;
+			}
+
+			if (stop - pos >= MIN_ITEM) {
+				found[3 * n] = pack(bytes, pos);
+				found[3 * n + 1] = pos + KEY_LENGTH + 1;
+				found[3 * n + 2] = stop - pos - KEY_LENGTH - 1;
+				n++;
+			}
+
+			pos = stop + 1;
+
+		}
+
+		items = found;
+		count = n;
+
+		metrics.stop(ADACMetrics.Stage.EXTRAS_PARSE, start, 0);
+
+	}
+
+	/**
+	 * Pack a four character key, such as {@link ExtrasKvp#CALIB_KEY}, into the
+	 * int used for lookups.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public static int key(String key) {
+
+		if (key.length() != KEY_LENGTH) {
+			throw new IllegalArgumentException("Extras keys have four characters: " + key);
+		}
+
+		return (key.charAt(0) & 0xff) << 24 | (key.charAt(1) & 0xff) << 16 | (key.charAt(2) & 0xff) << 8
+				| (key.charAt(3) & 0xff);
+
+	}
+
+	private static int pack(byte[] bytes, int pos) {
+		return (bytes[pos] & 0xff) << 24 | (bytes[pos + 1] & 0xff) << 16 | (bytes[pos + 2] & 0xff) << 8
+				| (bytes[pos + 3] & 0xff);
+	}
+
+	/**
+	 * Get the number of items in the block.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Find the item holding a key.
+	 *
+	 * @param key
+	 *            A key packed by {@link #key(String)}.
+	 * @return The index of the item, or -1 if the key is not present.
+	 */
+	public int indexOf(int key) {
+
+		for (int i = count - 1; i >= 0; i--) {
+			if (items[3 * i] == key) {
+				return i;
+			}
+		}
+		return -1;
+
+	}
+
+	/**
+	 * Check whether the block holds a key.
+	 *
+	 * @param key
+	 *            A key packed by {@link #key(String)}.
+	 * @return
+	 */
+	public boolean contains(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Get the value of a key, or null if the key is not present.
+	 *
+	 * @param key
+	 *            A key packed by {@link #key(String)}.
+	 * @return
+	 */
+	public String get(int key) {
+
+		int i = indexOf(key);
+		return i >= 0 ? getValue(i) : null;
+
+	}
+
+	/**
+	 * Get the value of a key, or null if the key is not present.
+	 *
+	 * @param key
+	 *            A four character key, such as {@link ExtrasKvp#CALIB_KEY}.
+	 * @return
+	 */
+	public String get(String key) {
+		return get(key(key));
+	}
+
+	/**
+	 * Get the key of the n'th item.
+	 *
+	 * @param n
+	 *            Index from zero to {@link #size()} - 1
+	 * @return
+	 */
+	public String getKey(int n) {
+		return new String(bytes, items[3 * n + 1] - KEY_LENGTH - 1, KEY_LENGTH, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Get the value of the n'th item. Each call decodes a new String.
+	 *
+	 * @param n
+	 *            Index from zero to {@link #size()} - 1
+	 * @return
+	 */
+	public String getValue(int n) {
+
+		if (n < 0 || n >= count) {
+			throw new IndexOutOfBoundsException("Item " + n + " of " + count);
+		}
+
+		return new String(bytes, items[3 * n + 1], items[3 * n + 2], StandardCharsets.ISO_8859_1);
+
+	}
+
+	/**
+	 * Copy every item into a new map.
+	 *
+	 * @return
+	 */
+	public HashMap<String, String> toMap() {
+
+		HashMap<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < count; i++) {
+			map.put(getKey(i), getValue(i));
+		}
+		return map;
+
+	}
+
+	/**
+	 * Get an unmodifiable map view of the block. Lookups go straight to the
+	 * block, so nothing is copied.
+	 *
+	 * @return
+	 */
+	public Map<String, String> asMap() {
+
+		return new AbstractMap<String, String>() {
+
+			@Override
+			public String get(Object key) {
+				return key instanceof String && ((String) key).length() == KEY_LENGTH ? ExtrasBlock.this.get((String) key)
+						: null;
+			}
+
+			@Override
+			public boolean containsKey(Object key) {
+				return get(key) != null;
+			}
+
+			@Override
+			public Set<Map.Entry<String, String>> entrySet() {
+
+				return new AbstractSet<Map.Entry<String, String>>() {
+
+					@Override
+					public int size() {
+
+						int n = 0;
+						for (int i = 0; i < count; i++) {
+							if (isLast(i)) {
+								n++;
+							}
+						}
+						return n;
+
+					}
+
+					@Override
+					public Iterator<Map.Entry<String, String>> iterator() {
+
+						return new Iterator<Map.Entry<String, String>>() {
+
+							private int next = advance(0);
+
+							public boolean hasNext() {
+								return next < count;
+							}
+
+							public Map.Entry<String, String> next() {
+
+								if (next >= count) {
+									throw new NoSuchElementException();
+								}
+
+								Map.Entry<String, String> entry = new AbstractMap.SimpleImmutableEntry<String, String>(
+										getKey(next), getValue(next));
+								next = advance(next + 1);
+								return entry;
+
+							}
+
+							public void remove() {
+								throw new UnsupportedOperationException();
+							}
+
+						};
+
+					}
+
+				};
+
+			}
+
+		};
+
+	}
+
+	// Skip items whose key appears again later on
+	private int advance(int i) {
+
+		while (i < count && !isLast(i)) {
+			i++;
+		}
+		return i;
+
+	}
+
+	private boolean isLast(int i) {
+		return indexOf(items[3 * i]) == i;
+	}
+
+}
@@ -75,30 +75,21 @@ public class ExtrasKvp extends ADACKvp {
 		return sb.toString().trim();
 	}
 
-	private void makeMap(byte[] bytes) {
-
-		extraMap = new HashMap<String, String>();
-		
-		String extras = new String(bytes);
-		String[] tokens = extras.trim().split("\\u0000");
-		for (int i = 0; i < tokens.length; i++) {
-
-			String tok = tokens[i];
-
-			// The first four characters represent a key
-			// Next byte is a non-printing (or some random)
-			// character. This is followed by the value string.
-			// The minimum number of characters must be six
-			if (tok.length() < 6) {
-				return;
-			}
-
-			String key = tok.substring(0, 4);
-			String value = tok.substring(5);
-
-			extraMap.put(key, value);
+	/**
+	 * Split the raw Program Specific bytes into key-value pairs; see
+	 * {@link ExtrasBlock}.
+	 * 
+	 * @param bytes
+	 *            Array holding the Program Specific block
+	 * @param offset
+	 *            Offset of the block within the array
+	 * @param length
+	 *            Length of the block
+	 * @return
+	 */
+	static HashMap<String, String> makeMap(byte[] bytes, int offset, int length) {
 
-		}
+		return new ExtrasBlock(bytes, offset, length).toMap();
 
 	}
 
@@ -114,7 +105,7 @@ public class ExtrasKvp extends ADACKvp {
 	 */
 	public void setData(byte[] bytes) {
 
-		makeMap(bytes);
+		extraMap = makeMap(bytes, 0, bytes.length);
 
 	}
 
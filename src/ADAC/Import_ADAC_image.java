@@ -9,9 +9,11 @@ import java.util.Map;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
 import ij.io.OpenDialog;
+import ij.measure.Calibration;
 import ij.plugin.PlugIn;
 
 /**
@@ -61,48 +63,84 @@ public class Import_ADAC_image extends ImagePlus implements PlugIn, ADACLog {
 		setStream(directory);
 
 		try {
-			ad = new ADACDecoder(directory, fi.fileName, inputStream, this);
+			if (fi.directory != null) {
+				ad = ADACDecoder.open(directory, fi.fileName, this);
+			} else {
+				ad = new ADACDecoder(directory, fi.fileName, inputStream, this);
+			}
 		} catch (IOException e) {
 			String msg = e.getMessage();
 			msg = "This does not appear to be a valid\n" + "ADAC file.";
 			error("ADACDecoder", msg);
+			return;
 		}
 
 		setParameters();
 
 		if (fi != null && fi.width > 0 && fi.height > 0 && fi.offset > 0) {
 
-			FileOpener fo = new FileOpener(fi);
-			ImagePlus imp = fo.open(false);
+			ImageStack stack;
+			Calibration cal;
+
+			if (fi.directory != null) {
+
+				// Local file: map the pixel data from the channel the header
+				// was read from and decode frames as they are viewed
+				try {
+					ADACPixelSource source = new ADACPixelSource(ad.getChannel(), ad);
+					stack = new ADACVirtualStack(source, ad.getHeader());
+					ADACDecoder.getMetrics().file(directory + fi.fileName, ad.getChannel().size());
+				} catch (IOException e) {
+					error("ADACDecoder", "Unable to read ADAC pixel data.");
+					return;
+				} finally {
+					closeDecoder();
+				}
+				cal = makeCalibration(ad);
+
+			} else if (Boolean.getBoolean(ADACPixelStore.PROPERTY)) {
+
+				// Stream or URL: copy the pixel data off the heap and decode
+				// frames as they are viewed
+				try {
+					ADACPixelStore store = ADACPixelStore.read(ad);
+					stack = new ADACVirtualStack(store, ad.getHeader());
+					ADACDecoder.getMetrics().file(directory + fi.fileName, ad.getImageOffset() + store.getCapacity());
+				} catch (IOException e) {
+					error("ADACDecoder", "Unable to read ADAC pixel data.");
+					return;
+				}
+				cal = makeCalibration(ad);
 
-			if (imp.getStackSize() > 1) {
+			} else {
 
-				// Gated image set
-				if (ad.isGated()) {
+				// Carry on reading the stream the header came from, which is
+				// left at the start of the pixel data
+				try {
+					fi.inputStream = ad.getImageStream();
+					fi.offset = 0;
+				} catch (IOException e) {
+					error("ADACDecoder", "Unable to read ADAC pixel data.");
+					return;
+				}
 
-					int intervals = ad.getNumberOfGatedIntervals();
-					int slices = ad.getNumberOfSlices();
-					int zdim = ad.getZDim();
+				ADACMetrics metrics = ADACDecoder.getMetrics();
+				long start = metrics.start();
 
-					// Is it a reconstruction?
-					if (ad.isReconstruction() && intervals > 1) {
-						// Yes it is a reconstruction
-						setDimensions(1, slices, intervals);
-					} else {
-						setDimensions(1, zdim, intervals);
-					}
-					setOpenAsHyperStack(true);
-				}
+				FileOpener fo = new FileOpener(fi);
+				ImagePlus imp = fo.open(false);
+				stack = imp.getStack();
+				cal = imp.getCalibration();
 
-				setStack(fi.fileName, imp.getStack());
+				// FileOpener reads and decodes in one go
+				long bytes = (long) stack.getSize() * ad.getFrameSize();
+				metrics.stop(ADACMetrics.Stage.STACK_BUILD, start, bytes);
+				metrics.file(directory + fi.fileName, ad.getImageOffset() + bytes);
 
-			} else {
-				setProcessor(fi.fileName, imp.getProcessor());
 			}
 
-			setCalibration(imp.getCalibration());
-
-			setProperty("Info", ad.toString());// getHeader());
+			setImage(this, fi.fileName, stack, ad);
+			setCalibration(cal);
 
 			setFileInfo(fi); // needed for revert
 
@@ -111,6 +149,7 @@ public class Import_ADAC_image extends ImagePlus implements PlugIn, ADACLog {
 			}
 
 		} else { // if (showErrors)
+			closeDecoder();
 			error("ADACDecoder", "Unable to decode ADAC header.");
 		}
 
@@ -118,6 +157,92 @@ public class Import_ADAC_image extends ImagePlus implements PlugIn, ADACLog {
 
 	}
 
+	/**
+	 * Build the spatial and temporal calibration that {@link FileOpener} would
+	 * have set from the file info.
+	 * 
+	 * @param ad
+	 * @return
+	 */
+	static Calibration makeCalibration(ADACDecoder ad) {
+
+		Calibration cal = new Calibration();
+
+		// ADAC only does square pixels
+		cal.pixelWidth = ad.getPixelSize();
+		cal.pixelHeight = cal.pixelWidth;
+		cal.setUnit("mm");
+		cal.frameInterval = ad.getFrameTime();
+		if (getFileType(ad) == FileInfo.GRAY16_SIGNED) {
+			cal.setSigned16BitCalibration();
+		}
+		return cal;
+
+	}
+
+	/**
+	 * Get the ImageJ file type for the bit depth of the object.
+	 * 
+	 * @param ad
+	 * @return
+	 */
+	static int getFileType(ADACDecoder ad) {
+
+		Integer fileType = bitDepthMap.get(ad.getBitDepth());
+		return fileType != null ? fileType : bitDepthMap.get(null);
+
+	}
+
+	/**
+	 * Put the stack into the image, as a hyperstack for gated sets, and attach
+	 * the header dump as the image info.
+	 * 
+	 * @param imp
+	 * @param title
+	 * @param stack
+	 * @param ad
+	 */
+	static void setImage(ImagePlus imp, String title, ImageStack stack, ADACDecoder ad) {
+
+		if (stack.getSize() > 1) {
+
+			// Gated image set
+			if (ad.isGated()) {
+
+				int intervals = ad.getNumberOfGatedIntervals();
+				int slices = ad.getNumberOfSlices();
+				int zdim = ad.getZDim();
+
+				// Is it a reconstruction?
+				if (ad.isReconstruction() && intervals > 1) {
+					// Yes it is a reconstruction
+					imp.setDimensions(1, slices, intervals);
+				} else {
+					imp.setDimensions(1, zdim, intervals);
+				}
+				imp.setOpenAsHyperStack(true);
+			}
+
+			imp.setStack(title, stack);
+
+		} else {
+			imp.setProcessor(title, stack.getProcessor(1));
+		}
+
+		imp.setProperty("Info", ad.toString());// getHeader());
+
+	}
+
+	private void closeDecoder() {
+
+		try {
+			ad.close();
+		} catch (IOException e) {
+			log("Unable to close " + fi.fileName);
+		}
+
+	}
+
 	private void setStream(String directory) {
 
 		try {
@@ -158,8 +283,7 @@ public class Import_ADAC_image extends ImagePlus implements PlugIn, ADACLog {
 		log("Image offset: " + fi.offset);
 
 		// Bitdepth
-		short adBitDepth = ad.getBitDepth();
-		fi.fileType = bitDepthMap.get(adBitDepth);
+		fi.fileType = getFileType(ad);
 
 		// ADAC only does square pixels
 		fi.pixelWidth = ad.getPixelSize();
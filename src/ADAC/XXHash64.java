@@ -0,0 +1,192 @@
+package ADAC;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming XXH64, a fast non-cryptographic 64 bit hash, for fingerprinting
+ * pixel data as it is read. Input may be fed in pieces of any size and gives
+ * the same hash as feeding it all at once.
+ *
+ * <pre>
+ * XXHash64 hash = new XXHash64();
+ * hash.update(bytes, 0, n);
+ * long value = hash.getValue();
+ * </pre>
+ *
+ * @author neil
+ *
+ */
+public class XXHash64 {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private static final int STRIPE = 32;
+
+	private final long seed;
+
+	private long v1;
+	private long v2;
+	private long v3;
+	private long v4;
+	private long total;
+
+	// Input left over from the last update, short of a whole stripe
+	private final byte[] memory = new byte[STRIPE];
+	private final ByteBuffer memoryBuffer = ByteBuffer.wrap(memory).order(ByteOrder.LITTLE_ENDIAN);
+	private int memorySize;
+
+	/**
+	 * Create a hash with a seed of zero.
+	 */
+	public XXHash64() {
+		this(0);
+	}
+
+	/**
+	 * Create a hash with a seed.
+	 *
+	 * @param seed
+	 */
+	public XXHash64(long seed) {
+		this.seed = seed;
+		reset();
+	}
+
+	/**
+	 * Forget all input so far.
+	 */
+	public void reset() {
+
+		v1 = seed + PRIME1 + PRIME2;
+		v2 = seed + PRIME2;
+		v3 = seed;
+		v4 = seed - PRIME1;
+		total = 0;
+		memorySize = 0;
+
+	}
+
+	/**
+	 * Add bytes to the hash.
+	 *
+	 * @param b
+	 * @param off
+	 * @param len
+	 */
+	public void update(byte[] b, int off, int len) {
+
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException(off + "+" + len + " of " + b.length);
+		}
+
+		total += len;
+
+		if (memorySize + len < STRIPE) {
+			System.arraycopy(b, off, memory, memorySize, len);
+			memorySize += len;
+			return;
+		}
+
+		// Complete the stripe left over from last time
+		if (memorySize > 0) {
+
+			int fill = STRIPE - memorySize;
+			System.arraycopy(b, off, memory, memorySize, fill);
+			off += fill;
+			len -= fill;
+
+			v1 = round(v1, memoryBuffer.getLong(0));
+			v2 = round(v2, memoryBuffer.getLong(8));
+			v3 = round(v3, memoryBuffer.getLong(16));
+			v4 = round(v4, memoryBuffer.getLong(24));
+			memorySize = 0;
+
+		}
+
+		ByteBuffer in = ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN);
+		int end = off + len;
+
+		long a1 = v1, a2 = v2, a3 = v3, a4 = v4;
+		for (; off + STRIPE <= end; off += STRIPE) {
+			a1 = round(a1, in.getLong(off));
+			a2 = round(a2, in.getLong(off + 8));
+			a3 = round(a3, in.getLong(off + 16));
+			a4 = round(a4, in.getLong(off + 24));
+		}
+		v1 = a1;
+		v2 = a2;
+		v3 = a3;
+		v4 = a4;
+
+		memorySize = end - off;
+		System.arraycopy(b, off, memory, 0, memorySize);
+
+	}
+
+	/**
+	 * Get the hash of all input so far. More input may still be added.
+	 *
+	 * @return
+	 */
+	public long getValue() {
+
+		long h;
+		if (total >= STRIPE) {
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		} else {
+			h = seed + PRIME5;
+		}
+
+		h += total;
+
+		int i = 0;
+		for (; i + 8 <= memorySize; i += 8) {
+			h ^= round(0, memoryBuffer.getLong(i));
+			h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+		}
+		if (i + 4 <= memorySize) {
+			h ^= (memoryBuffer.getInt(i) & 0xFFFFFFFFL) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			i += 4;
+		}
+		for (; i < memorySize; i++) {
+			h ^= (memory[i] & 0xFF) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+		}
+
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+		return h;
+
+	}
+
+	/**
+	 * Get the number of bytes hashed so far.
+	 *
+	 * @return
+	 */
+	public long getLength() {
+		return total;
+	}
+
+	private static long round(long acc, long input) {
+		return Long.rotateLeft(acc + input * PRIME2, 31) * PRIME1;
+	}
+
+	private static long merge(long acc, long v) {
+		return (acc ^ round(0, v)) * PRIME1 + PRIME4;
+	}
+
+}